@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2008, Intelerad Medical Systems Incorporated
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Intelerad Medical Systems Incorporated nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY Intelerad Medical Systems Incorporated ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL Intelerad Medical Systems Incorporated BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.intelerad.tools.lib.concurrent.bench;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.intelerad.tools.lib.concurrent.BoundedExecutor;
+
+/**
+ * Many threads submitting tiny tasks to one BoundedExecutor, the lock-free
+ * one against the old synchronized one (SynchronizedBoundedExecutor). Also
+ * checks that no more than the concurrency limit ever ran at once.
+ * <p>
+ * Arguments (all optional): producer threads (32), tasks per producer
+ * (100000), concurrency (4), rounds (4). Run with "ant bench".
+ */
+public class BoundedExecutorContentionBenchmark
+{
+    private static final AtomicInteger sRunning = new AtomicInteger();
+    private static final AtomicInteger sMaxRunning = new AtomicInteger();
+    
+    public static void main( String[] args ) throws Exception
+    {
+        int producers = args.length > 0 ? Integer.parseInt( args[ 0 ] ) : 32;
+        int tasksPerProducer = args.length > 1 ? Integer.parseInt( args[ 1 ] ) : 100000;
+        int concurrency = args.length > 2 ? Integer.parseInt( args[ 2 ] ) : 4;
+        int rounds = args.length > 3 ? Integer.parseInt( args[ 3 ] ) : 4;
+        
+        System.out.println( producers + " producers x " + tasksPerProducer + " tasks, concurrency " + concurrency );
+        ExecutorService pool = Executors.newFixedThreadPool( concurrency * 2 );
+        try
+        {
+            for ( int round = 1; round <= rounds; round++ )
+            {
+                long synchronizedMillis = run( new SynchronizedBoundedExecutor( concurrency, pool ), producers, tasksPerProducer );
+                int synchronizedMax = sMaxRunning.get();
+                long lockFreeMillis = run( new BoundedExecutor( concurrency, pool ), producers, tasksPerProducer );
+                int lockFreeMax = sMaxRunning.get();
+                
+                System.out.println( "round " + round + ": synchronized " + synchronizedMillis + "ms (max running "
+                                    + synchronizedMax + "), lock-free " + lockFreeMillis + "ms (max running "
+                                    + lockFreeMax + ")" );
+                if ( lockFreeMax > concurrency )
+                    throw new IllegalStateException( lockFreeMax + " tasks ran at once, the limit is " + concurrency );
+            }
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+    
+    /**
+     * @return how long it took for every task to run, in milliseconds.
+     */
+    private static long run( final Executor executor, int producers, final int tasksPerProducer ) throws Exception
+    {
+        final CountDownLatch done = new CountDownLatch( producers * tasksPerProducer );
+        final CyclicBarrier start = new CyclicBarrier( producers + 1 );
+        final Runnable task = new Runnable()
+        {
+            public void run()
+            {
+                int running = sRunning.incrementAndGet();
+                for (;;)
+                {
+                    int max = sMaxRunning.get();
+                    if ( running <= max || sMaxRunning.compareAndSet( max, running ) )
+                        break;
+                }
+                sRunning.decrementAndGet();
+                done.countDown();
+            }
+        };
+        
+        sMaxRunning.set( 0 );
+        for ( int i = 0; i < producers; i++ )
+        {
+            new Thread( "Producer " + i )
+            {
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                    }
+                    catch ( Exception ex )
+                    {
+                        return;
+                    }
+                    for ( int j = 0; j < tasksPerProducer; j++ )
+                        executor.execute( task );
+                }
+            }.start();
+        }
+        
+        /* timed from the release of the producers, the main thread may not get the CPU back until they're done */
+        long startTime = System.nanoTime();
+        start.await();
+        done.await();
+        return ( System.nanoTime() - startTime ) / 1000000;
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2008, Intelerad Medical Systems Incorporated
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Intelerad Medical Systems Incorporated nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY Intelerad Medical Systems Incorporated ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL Intelerad Medical Systems Incorporated BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.intelerad.tools.lib.concurrent.bench;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+
+import com.intelerad.tools.lib.concurrent.CallListener;
+import com.intelerad.tools.lib.concurrent.CallableExecutor;
+import com.intelerad.tools.lib.concurrent.CallableUtilities;
+import com.intelerad.tools.lib.concurrent.Invoker;
+
+/**
+ * Bytes allocated per completed task by CallableExecutor.execute() and
+ * CallableUtilities.execute(), measured with the HotSpot per-thread
+ * allocation counter. Everything runs on the calling thread (direct executor
+ * and invoker) so the counter sees the whole task: submission, the call, the
+ * completion dispatch and the callbacks.
+ * <p>
+ * Only uses API that predates the allocation work, so the same benchmark can
+ * be run against an older tree for comparison.
+ * <p>
+ * Arguments (all optional): tasks per round (1000000), rounds (5). Run with
+ * "ant bench".
+ */
+public class CompletionAllocationBenchmark
+{
+    private static final Executor DIRECT_EXECUTOR = new Executor()
+    {
+        public void execute( Runnable command )
+        {
+            command.run();
+        }
+    };
+    
+    /** BasicTaskController doesn't take the SYNCHRONOUS_INVOKER, this does the same thing */
+    private static final Invoker DIRECT_INVOKER = new Invoker()
+    {
+        public void invoke( Runnable runnable )
+        {
+            runnable.run();
+        }
+    };
+    
+    private static final CallListener LISTENER = new CallListener()
+    {
+        public void handleSuccess( Object result ) {}
+        public void handleException( Exception exception ) {}
+        public void handleCancel() {}
+        public void handleFinally() {}
+    };
+    
+    private static final Callable CALLABLE = new Callable()
+    {
+        public Object call()
+        {
+            return CALLABLE;
+        }
+    };
+    
+    public static void main( String[] args )
+    {
+        int tasks = args.length > 0 ? Integer.parseInt( args[ 0 ] ) : 1000000;
+        int rounds = args.length > 1 ? Integer.parseInt( args[ 1 ] ) : 5;
+        
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        
+        /* the first rounds include the JIT warming up, the last ones are the numbers to look at */
+        for ( int round = 1; round <= rounds; round++ )
+        {
+            long before = threads.getThreadAllocatedBytes( threadId );
+            for ( int i = 0; i < tasks; i++ )
+                CallableExecutor.execute( CALLABLE, LISTENER, Invoker.SYNCHRONOUS_INVOKER, DIRECT_EXECUTOR );
+            long afterCallableExecutor = threads.getThreadAllocatedBytes( threadId );
+            for ( int i = 0; i < tasks; i++ )
+                CallableUtilities.execute( CALLABLE, LISTENER, DIRECT_INVOKER, DIRECT_EXECUTOR );
+            long afterCallableUtilities = threads.getThreadAllocatedBytes( threadId );
+            
+            System.out.println( "round " + round + ": CallableExecutor " + ( afterCallableExecutor - before ) / tasks
+                                + " B/task, CallableUtilities (BasicTaskController) "
+                                + ( afterCallableUtilities - afterCallableExecutor ) / tasks + " B/task" );
+        }
+    }
+}
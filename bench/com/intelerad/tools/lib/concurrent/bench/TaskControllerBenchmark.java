@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2008, Intelerad Medical Systems Incorporated
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Intelerad Medical Systems Incorporated nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY Intelerad Medical Systems Incorporated ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL Intelerad Medical Systems Incorporated BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.intelerad.tools.lib.concurrent.bench;
+
+import com.intelerad.tools.lib.concurrent.BasicTaskController;
+import com.intelerad.tools.lib.concurrent.CallListener;
+import com.intelerad.tools.lib.concurrent.Cancellable;
+import com.intelerad.tools.lib.concurrent.Invoker;
+
+/**
+ * The lock-free BasicTaskController against the old synchronized one
+ * (SynchronizedTaskController):
+ * <ul>
+ * <li>uncontended: create, setResult() and get() on one thread, with an
+ * invoker that calls back right away.</li>
+ * <li>hand-off: one thread sets the results while another waits in get() for
+ * each of them in turn, so most get() calls block and are woken up.</li>
+ * </ul>
+ * JMH isn't part of this build so this is a plain timing loop; the first
+ * rounds are the JIT warming up.
+ * <p>
+ * Arguments (all optional): tasks per round (2000000), rounds (5). Run with
+ * "ant bench".
+ */
+public class TaskControllerBenchmark
+{
+    /** BasicTaskController doesn't take the SYNCHRONOUS_INVOKER, this does the same thing */
+    private static final Invoker DIRECT_INVOKER = new Invoker()
+    {
+        public void invoke( Runnable runnable )
+        {
+            runnable.run();
+        }
+    };
+    
+    private static final CallListener LISTENER = new CallListener()
+    {
+        public void handleSuccess( Object result ) {}
+        public void handleException( Exception exception ) {}
+        public void handleCancel() {}
+        public void handleFinally() {}
+    };
+    
+    private static final Object RESULT = new Object();
+    
+    /** Keeps the JIT from dropping the get() calls */
+    private static volatile Object sSink;
+    
+    public static void main( String[] args ) throws Exception
+    {
+        int tasks = args.length > 0 ? Integer.parseInt( args[ 0 ] ) : 2000000;
+        int rounds = args.length > 1 ? Integer.parseInt( args[ 1 ] ) : 5;
+        
+        for ( int round = 1; round <= rounds; round++ )
+        {
+            System.out.println( "round " + round + ": uncontended synchronized "
+                                + uncontendedSynchronized( tasks ) + " ns/task, lock-free "
+                                + uncontendedLockFree( tasks ) + " ns/task; hand-off synchronized "
+                                + handOffSynchronized( tasks / 10 ) + " ns/task, lock-free "
+                                + handOffLockFree( tasks / 10 ) + " ns/task" );
+        }
+    }
+    
+    private static long uncontendedSynchronized( int tasks ) throws Exception
+    {
+        long start = System.nanoTime();
+        for ( int i = 0; i < tasks; i++ )
+        {
+            SynchronizedTaskController controller = new SynchronizedTaskController( Cancellable.NULL_INSTANCE, LISTENER, DIRECT_INVOKER );
+            controller.setResult( RESULT );
+            sSink = controller.get();
+        }
+        return ( System.nanoTime() - start ) / tasks;
+    }
+    
+    private static long uncontendedLockFree( int tasks ) throws Exception
+    {
+        long start = System.nanoTime();
+        for ( int i = 0; i < tasks; i++ )
+        {
+            BasicTaskController controller = new BasicTaskController( Cancellable.NULL_INSTANCE, LISTENER, DIRECT_INVOKER );
+            controller.setResult( RESULT );
+            sSink = controller.get();
+        }
+        return ( System.nanoTime() - start ) / tasks;
+    }
+    
+    private static long handOffSynchronized( int tasks ) throws Exception
+    {
+        final SynchronizedTaskController[] controllers = new SynchronizedTaskController[ tasks ];
+        for ( int i = 0; i < tasks; i++ )
+            controllers[ i ] = new SynchronizedTaskController( Cancellable.NULL_INSTANCE, LISTENER, Invoker.NULL_INVOKER );
+        
+        Thread waiter = new Thread( "Waiter" )
+        {
+            public void run()
+            {
+                try
+                {
+                    for ( int i = 0; i < controllers.length; i++ )
+                        sSink = controllers[ i ].get();
+                }
+                catch ( Exception ex )
+                {
+                    ex.printStackTrace();
+                }
+            }
+        };
+        
+        long start = System.nanoTime();
+        waiter.start();
+        for ( int i = 0; i < tasks; i++ )
+            controllers[ i ].setResult( RESULT );
+        waiter.join();
+        return ( System.nanoTime() - start ) / tasks;
+    }
+    
+    private static long handOffLockFree( int tasks ) throws Exception
+    {
+        final BasicTaskController[] controllers = new BasicTaskController[ tasks ];
+        for ( int i = 0; i < tasks; i++ )
+            controllers[ i ] = new BasicTaskController( Cancellable.NULL_INSTANCE, LISTENER, Invoker.NULL_INVOKER );
+        
+        Thread waiter = new Thread( "Waiter" )
+        {
+            public void run()
+            {
+                try
+                {
+                    for ( int i = 0; i < controllers.length; i++ )
+                        sSink = controllers[ i ].get();
+                }
+                catch ( Exception ex )
+                {
+                    ex.printStackTrace();
+                }
+            }
+        };
+        
+        long start = System.nanoTime();
+        waiter.start();
+        for ( int i = 0; i < tasks; i++ )
+            controllers[ i ].setResult( RESULT );
+        waiter.join();
+        return ( System.nanoTime() - start ) / tasks;
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2008, Intelerad Medical Systems Incorporated
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Intelerad Medical Systems Incorporated nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY Intelerad Medical Systems Incorporated ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL Intelerad Medical Systems Incorporated BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.intelerad.tools.lib.concurrent;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A concurrency limit for BoundedExecutor that moves between a minimum and a
+ * maximum depending on how long runnables take to run. It uses the same idea
+ * as TCP Vegas: the shortest run time seen is taken as the "no load" time and
+ * the difference between that and the current run time tells us roughly how
+ * many runnables are waiting on the resource behind them (a database for
+ * example) instead of doing work.
+ * <p>
+ * After each window of samples:<br>
+ * queued = limit * ( 1 - noLoadTime / averageTime )<br>
+ * if queued < alpha the limit goes up by one, if queued > beta it goes down
+ * by one. The limit is only raised if the window actually used the limit
+ * (otherwise we learn nothing about whether a higher limit would help).
+ * <p>
+ * The no load time is re-measured every so often so it can follow the
+ * resource getting permanently faster or slower. To do that the limit drops
+ * to the minimum for two windows: one to let the runnables already running
+ * finish and one to measure. Then the old limit is put back.
+ * <p>
+ * Samples are recorded without locking. This class is thread safe.
+ * 
+ * @see BoundedExecutor
+ */
+public class AdaptiveConcurrencyLimit
+{
+    /** Smallest number of samples used to compute a new limit */
+    private static final int MIN_WINDOW_SAMPLES = 10;
+    
+    /** Number of windows before the no load time is measured again */
+    private static final int NO_LOAD_PROBE_WINDOWS = 1000;
+    
+    private static final int NOT_PROBING = 0;
+    private static final int PROBE_DRAINING = 1;
+    private static final int PROBE_MEASURING = 2;
+    
+    private final int mMinimumLimit;
+    private final int mMaximumLimit;
+    private volatile int mLimit;
+    
+    private final AtomicInteger mWindowSamples = new AtomicInteger();
+    private final AtomicLong mWindowRunTimeSum = new AtomicLong();
+    private final AtomicInteger mWindowMaxInFlight = new AtomicInteger();
+    
+    /* Only written by the thread that closes a window */
+    private volatile long mNoLoadRunTime = Long.MAX_VALUE;
+    private volatile long mAverageRunTime;
+    private volatile int mWindowsSinceProbe;
+    private volatile int mProbeState = NOT_PROBING;
+    private volatile int mLimitBeforeProbe;
+    
+    /**
+     * @param minimumLimit
+     *            the limit never goes below this. It is also the starting
+     *            limit.
+     * @param maximumLimit
+     *            the limit never goes above this.
+     */
+    public AdaptiveConcurrencyLimit( int minimumLimit, int maximumLimit )
+    {
+        if ( minimumLimit < 1 || maximumLimit < minimumLimit )
+            throw new IllegalArgumentException( "Need 1 <= minimumLimit <= maximumLimit - " + minimumLimit + ", " + maximumLimit );
+        mMinimumLimit = minimumLimit;
+        mMaximumLimit = maximumLimit;
+        mLimit = minimumLimit;
+    }
+    
+    /**
+     * Records how long one runnable took to run.
+     * 
+     * @param runTimeNanos
+     *            time spent in run()
+     * @param inFlight
+     *            number of runnables that were running when this one started
+     *            (including this one)
+     * @return true if the limit went up
+     */
+    public boolean addSample( long runTimeNanos, int inFlight )
+    {
+        for (;;)
+        {
+            int max = mWindowMaxInFlight.get();
+            if ( inFlight <= max || mWindowMaxInFlight.compareAndSet( max, inFlight ) )
+                break;
+        }
+        mWindowRunTimeSum.addAndGet( runTimeNanos );
+        int samples = mWindowSamples.incrementAndGet();
+        
+        if ( samples < Math.max( MIN_WINDOW_SAMPLES, mLimit ) )
+            return false;
+        
+        /* only one thread gets to close the window */
+        if ( !mWindowSamples.compareAndSet( samples, 0 ) )
+            return false;
+        
+        long sum = mWindowRunTimeSum.getAndSet( 0 );
+        int maxInFlight = mWindowMaxInFlight.getAndSet( 0 );
+        return updateLimit( sum / samples, maxInFlight );
+    }
+    
+    private boolean updateLimit( long averageRunTime, int maxInFlight )
+    {
+        mAverageRunTime = averageRunTime;
+        
+        if ( mProbeState == PROBE_DRAINING )
+        {
+            mProbeState = PROBE_MEASURING;
+            return false;
+        }
+        if ( mProbeState == PROBE_MEASURING )
+        {
+            mProbeState = NOT_PROBING;
+            mNoLoadRunTime = averageRunTime;
+            mLimit = mLimitBeforeProbe;
+            return mLimitBeforeProbe > mMinimumLimit;
+        }
+        if ( ++mWindowsSinceProbe >= NO_LOAD_PROBE_WINDOWS )
+        {
+            mWindowsSinceProbe = 0;
+            mProbeState = PROBE_DRAINING;
+            mLimitBeforeProbe = mLimit;
+            mLimit = mMinimumLimit;
+            return false;
+        }
+        
+        if ( averageRunTime < mNoLoadRunTime )
+            mNoLoadRunTime = averageRunTime;
+        
+        int limit = mLimit;
+        double queued = averageRunTime == 0 ? 0 : limit * ( 1.0 - (double) mNoLoadRunTime / averageRunTime );
+        
+        /* thresholds grow slowly with the limit so large limits can still move */
+        double logLimit = Math.max( 1.0, Math.log10( limit ) );
+        double alpha = 3 * logLimit;
+        double beta = 6 * logLimit;
+        
+        int newLimit = limit;
+        if ( queued > beta )
+            newLimit = limit - 1;
+        else if ( queued < alpha && maxInFlight >= limit )
+            newLimit = limit + 1;
+        
+        newLimit = Math.max( mMinimumLimit, Math.min( mMaximumLimit, newLimit ) );
+        mLimit = newLimit;
+        return newLimit > limit;
+    }
+    
+    /**
+     * @return the current concurrency limit.
+     */
+    public int getLimit()
+    {
+        return mLimit;
+    }
+    
+    public int getMinimumLimit()
+    {
+        return mMinimumLimit;
+    }
+    
+    public int getMaximumLimit()
+    {
+        return mMaximumLimit;
+    }
+    
+    /**
+     * @return the average run time over the last window of samples or 0 if
+     *         no window has completed yet.
+     */
+    public long getAverageRunTime( TimeUnit unit )
+    {
+        return unit.convert( mAverageRunTime, TimeUnit.NANOSECONDS );
+    }
+    
+    /**
+     * @return the run time the limit is measured against or 0 if no window has
+     *         completed yet.
+     */
+    public long getNoLoadRunTime( TimeUnit unit )
+    {
+        long noLoadRunTime = mNoLoadRunTime;
+        if ( noLoadRunTime == Long.MAX_VALUE )
+            return 0;
+        return unit.convert( noLoadRunTime, TimeUnit.NANOSECONDS );
+    }
+}
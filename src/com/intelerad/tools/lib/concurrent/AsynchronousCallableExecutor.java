@@ -39,6 +39,10 @@ import java.util.Map;
  * on a fixed List of AsynchronousCallables. It also provides a modified
  * "listener" callback interface to make managing the results easier. After each
  * AsychronousCallable finishes the next one is started.
+ * <p>
+ * The bundles can also come from an Iterator, in which case they're only
+ * pulled from it as tasks finish and are let go of once their task is done,
+ * so a job of millions of bundles only holds on to as many as are running.
  */
 public class AsynchronousCallableExecutor
 {
@@ -48,16 +52,37 @@ public class AsynchronousCallableExecutor
      */
     public static final int UNLIMITED = -1;
 
-    private final List mAsynchronousCallableBundles;
+    /** The bundles that haven't been started yet */
+    private final Iterator mAsynchronousCallableBundles;
     
-    /** Index into mAsynchronousCallableBundles indicating the next task to start. */
-    private int mCurrentIndex = 0;
+    /** Set if mAsynchronousCallableBundles threw; no more bundles are taken from it */
+    private boolean mSourceFailed;
     
     /** Map CallListener to TaskController */
     private final Map mCurrentTasks; 
     private final int mConcurrency;
 
     private BasicCompositeTaskController mCompositeTaskController;
+    private boolean mFinished;
+    
+    private CompletionPolicy mCompletionPolicy = CompletionPolicy.ALL;
+    private int mSuccessCount;
+    
+    /** Set once mCompletionPolicy is satisfied: nothing more is started and what's running is cancelled */
+    private boolean mPolicyMet;
+    
+    /**
+     * Starts the next task after one finishes. Goes through the Trampoline so
+     * tasks that finish synchronously inside call() don't recurse.
+     */
+    private final Runnable mStartNext = new Runnable()
+    {
+        public void run()
+        {
+            startTask();
+            checkForDone();
+        }
+    };
     
     /**
      * Invokes each AsynchronousCallable in turn one at a time.
@@ -100,11 +125,163 @@ public class AsynchronousCallableExecutor
         return compositeFunction.getTaskController();
     }
     
+    /**
+     * Same as doAllFunctions( asynchronousCallableBundles, listener, invoker,
+     * concurrency ) but partial results are delivered to the listener as
+     * specified by delivery (coalesced per frame for example).
+     */
+    public static TaskController doAllFunctions( List asynchronousCallableBundles,
+                                                 CompositeCallListener listener,
+                                                 Invoker invoker,
+                                                 int concurrency,
+                                                 BasicCompositeTaskController.PartialDelivery delivery )
+    {
+        AsynchronousCallableExecutor compositeFunction = new AsynchronousCallableExecutor( asynchronousCallableBundles,
+                                                                                           listener,
+                                                                                           invoker,
+                                                                                           concurrency,
+                                                                                           delivery );
+        compositeFunction.start();
+        return compositeFunction.getTaskController();
+    }
+    
+    /**
+     * Invokes the AsynchronousCallableBundles returned by the iterator,
+     * allowing for concurrency number of tasks to be running concurrently.
+     * Bundles are only taken from the iterator when there's room to start
+     * them. The iterator is only used by one thread at a time but not always
+     * the same one.
+     * 
+     * @param asynchronousCallableBundles
+     *            an Iterator of AsynchronousCallableBundle to execute
+     * @param listener
+     *            to notify
+     * @param invoker
+     *            to use to notify
+     * @param concurrency
+     *            number of allowed concurrent functions or UNLIMITED to start
+     *            every bundle right away (which pulls them all from the
+     *            iterator up front).
+     * @return a TaskController representing this asynchronous task
+     */
+    public static TaskController doAllFunctions( Iterator asynchronousCallableBundles,
+                                                 CompositeCallListener listener,
+                                                 Invoker invoker,
+                                                 int concurrency )
+    {
+        AsynchronousCallableExecutor compositeFunction = new AsynchronousCallableExecutor( asynchronousCallableBundles,
+                                                                                           listener,
+                                                                                           invoker,
+                                                                                           concurrency,
+                                                                                           BasicCompositeTaskController.PartialDelivery.EACH );
+        compositeFunction.start();
+        return compositeFunction.getTaskController();
+    }
+    
+    /**
+     * Same as doAllFunctions( Iterator, CompositeCallListener, Invoker, int )
+     * but in streaming mode: partial results are not kept, only delivered to
+     * the listener and folded with the reducer. Together with the Iterator
+     * this runs jobs of any size in memory proportional to the concurrency.
+     * 
+     * @param reducer
+     *            may be null
+     * @param initialValue
+     *            passed to the first call to the reducer
+     * @see BasicCompositeTaskController
+     * @see ReducingCompositeCallListener
+     */
+    public static TaskController doAllFunctions( Iterator asynchronousCallableBundles,
+                                                 CompositeCallListener listener,
+                                                 Invoker invoker,
+                                                 int concurrency,
+                                                 BasicCompositeTaskController.PartialDelivery delivery,
+                                                 PartialResultReducer reducer,
+                                                 Object initialValue )
+    {
+        AsynchronousCallableExecutor compositeFunction = new AsynchronousCallableExecutor( asynchronousCallableBundles,
+                                                                                           listener,
+                                                                                           invoker,
+                                                                                           concurrency,
+                                                                                           delivery,
+                                                                                           reducer,
+                                                                                           initialValue );
+        compositeFunction.start();
+        return compositeFunction.getTaskController();
+    }
+    
+    /**
+     * Same as doAllFunctions( asynchronousCallableBundles, listener, invoker,
+     * concurrency ) but stops as soon as the completion policy is met (the
+     * first success for example) instead of always running every bundle.
+     */
+    public static TaskController doAllFunctions( List asynchronousCallableBundles,
+                                                 CompositeCallListener listener,
+                                                 Invoker invoker,
+                                                 int concurrency,
+                                                 CompletionPolicy completionPolicy )
+    {
+        AsynchronousCallableExecutor compositeFunction = new AsynchronousCallableExecutor( asynchronousCallableBundles,
+                                                                                           listener,
+                                                                                           invoker,
+                                                                                           concurrency );
+        compositeFunction.setCompletionPolicy( completionPolicy );
+        compositeFunction.start();
+        return compositeFunction.getTaskController();
+    }
+    
     public AsynchronousCallableExecutor( List asynchronousCallableBundles, CompositeCallListener listener, Invoker invoker, int concurrency )
+    {
+        this( asynchronousCallableBundles, listener, invoker, concurrency, BasicCompositeTaskController.PartialDelivery.EACH );
+    }
+    
+    public AsynchronousCallableExecutor( List asynchronousCallableBundles,
+                                         CompositeCallListener listener,
+                                         Invoker invoker,
+                                         int concurrency,
+                                         BasicCompositeTaskController.PartialDelivery delivery )
+    {
+        this( new ReleasingIterator( new ArrayList( asynchronousCallableBundles ) ), listener, invoker, concurrency, delivery );
+    }
+    
+    public AsynchronousCallableExecutor( Iterator asynchronousCallableBundles,
+                                         CompositeCallListener listener,
+                                         Invoker invoker,
+                                         int concurrency,
+                                         BasicCompositeTaskController.PartialDelivery delivery )
+    {
+        this( asynchronousCallableBundles, listener, invoker, concurrency, delivery, false, null, null );
+    }
+    
+    /**
+     * Makes an executor in streaming mode: partial results are not kept, only
+     * delivered and folded with the reducer.
+     * 
+     * @see BasicCompositeTaskController
+     */
+    public AsynchronousCallableExecutor( Iterator asynchronousCallableBundles,
+                                         CompositeCallListener listener,
+                                         Invoker invoker,
+                                         int concurrency,
+                                         BasicCompositeTaskController.PartialDelivery delivery,
+                                         PartialResultReducer reducer,
+                                         Object initialValue )
+    {
+        this( asynchronousCallableBundles, listener, invoker, concurrency, delivery, true, reducer, initialValue );
+    }
+    
+    private AsynchronousCallableExecutor( Iterator asynchronousCallableBundles,
+                                          CompositeCallListener listener,
+                                          Invoker invoker,
+                                          int concurrency,
+                                          BasicCompositeTaskController.PartialDelivery delivery,
+                                          boolean streaming,
+                                          PartialResultReducer reducer,
+                                          Object initialValue )
     {
         mCurrentTasks = new HashMap();
-        mAsynchronousCallableBundles = new ArrayList( asynchronousCallableBundles );
-        mConcurrency =  concurrency == UNLIMITED ? mAsynchronousCallableBundles.size() : concurrency;
+        mAsynchronousCallableBundles = asynchronousCallableBundles;
+        mConcurrency =  concurrency == UNLIMITED ? Integer.MAX_VALUE : concurrency;
         
         Cancellable cancellable = new Cancellable()
         {
@@ -113,7 +290,10 @@ public class AsynchronousCallableExecutor
                 cancelOutstanding();
             }
         };
-        mCompositeTaskController = new BasicCompositeTaskController( cancellable, listener, invoker );
+        if ( streaming )
+            mCompositeTaskController = new BasicCompositeTaskController( cancellable, listener, invoker, delivery, reducer, initialValue );
+        else
+            mCompositeTaskController = new BasicCompositeTaskController( cancellable, listener, invoker, delivery );
     }
     
     public TaskController getTaskController()
@@ -121,48 +301,147 @@ public class AsynchronousCallableExecutor
         return mCompositeTaskController;
     }
     
+    /**
+     * Decides when the whole task is done. CompletionPolicy.ALL by default.
+     * Must be called before start().
+     */
+    public synchronized void setCompletionPolicy( CompletionPolicy completionPolicy )
+    {
+        mCompletionPolicy = completionPolicy;
+    }
+    
     public synchronized void start()
     {
-        for ( int index = 0; index < mConcurrency; index++ )
+        Trampoline.run( new Runnable()
         {
-            startTask();
-        }
-        checkForDone();
+            public void run()
+            {
+                int started = 0;
+                while ( started < mConcurrency && startTask() )
+                    started++;
+                checkForDone();
+            }
+        } );
     }
     
     private synchronized void taskFinished( CallListener listener )
     {
         mCurrentTasks.remove( listener );
         
-        startTask();
+        Trampoline.run( mStartNext );
+    }
+    
+    /**
+     * Called when a task succeeds or fails, after its partial result was
+     * added. Ends the whole task if that satisfies the completion policy.
+     */
+    private synchronized void taskReturned( boolean succeeded )
+    {
+        if ( succeeded )
+            mSuccessCount++;
+        
+        if ( mPolicyMet || !mCompletionPolicy.isMet( mSuccessCount, succeeded ) )
+            return;
+        
+        mPolicyMet = true;
+        cancelOutstanding();
         checkForDone();
     }
     
     private synchronized void checkForDone()
     {
-        if ( mCurrentTasks.size() == 0 )
-            mCompositeTaskController.finished();
+        if ( mFinished )
+            return;
+        
+        if ( mPolicyMet )
+        {
+            /* the cancelled tasks may still call back, their results are dropped */
+            finish();
+            return;
+        }
+        
+        if ( mCurrentTasks.size() != 0 )
+            return;
+        
+        /* tasks that finished synchronously may have queued a start of the next ones */
+        if ( hasNextBundle() && !mCompositeTaskController.isCancelled() )
+            return;
+        
+        /* hasNextBundle() may have failed the source and so met the policy */
+        finish();
     }
     
-    private synchronized void startTask()
+    private synchronized void finish()
     {
-        if ( mCompositeTaskController.isCancelled() )
-            return;
-        if ( mCurrentIndex >= mAsynchronousCallableBundles.size() )
+        if ( mFinished )
             return;
+        mFinished = true;
+        mCompositeTaskController.finished();
+    }
+    
+    private synchronized boolean hasNextBundle()
+    {
+        if ( mSourceFailed )
+            return false;
+        try
+        {
+            return mAsynchronousCallableBundles.hasNext();
+        }
+        catch ( RuntimeException ex )
+        {
+            sourceFailed( ex );
+            return false;
+        }
+    }
+    
+    /**
+     * The iterator threw: it's reported as a partial exception (with no
+     * context) and counts as a failed task for the completion policy, so
+     * FAIL_FAST cancels the bundles already started. Otherwise they're
+     * allowed to finish.
+     */
+    private synchronized void sourceFailed( RuntimeException ex )
+    {
+        mSourceFailed = true;
+        mCompositeTaskController.addPartialException( ex, null );
+        taskReturned( false );
+    }
+    
+    /**
+     * @return false if there was no task left to start.
+     */
+    private synchronized boolean startTask()
+    {
+        if ( mCompositeTaskController.isCancelled() || mPolicyMet )
+            return false;
+        if ( !hasNextBundle() )
+            return false;
         
-        final AsynchronousCallableBundle currentCallableBundle = (AsynchronousCallableBundle) mAsynchronousCallableBundles.get( mCurrentIndex );
-        mCurrentIndex ++;
+        AsynchronousCallableBundle currentCallableBundle;
+        try
+        {
+            currentCallableBundle = (AsynchronousCallableBundle) mAsynchronousCallableBundles.next();
+        }
+        catch ( RuntimeException ex )
+        {
+            sourceFailed( ex );
+            return false;
+        }
+        
+        /* only the context is kept so the bundle can go once call() returns */
+        final Object context = currentCallableBundle.getContext();
         CallListener callListener = new CallAdapter()
         {
             public void handleSuccess( final Object result )
             {
-                mCompositeTaskController.addPartialSuccess( result, currentCallableBundle.getContext() );
+                mCompositeTaskController.addPartialSuccess( result, context );
+                taskReturned( true );
             }
             
             public void handleException( final Exception ex )
             {
-                mCompositeTaskController.addPartialException( ex, currentCallableBundle.getContext() );
+                mCompositeTaskController.addPartialException( ex, context );
+                taskReturned( false );
             }
             
             public void handleFinally()
@@ -171,16 +450,33 @@ public class AsynchronousCallableExecutor
             }  
         };
             
-        mCurrentTasks.put( callListener, currentCallableBundle.getAsynchronousCallable().call( callListener ) );
+        /*
+         * The task may finish before call() returns so it's in the map before
+         * and only stays there if it hasn't.
+         */
+        mCurrentTasks.put( callListener, null );
+        TaskController taskController = currentCallableBundle.getAsynchronousCallable().call( callListener );
+        if ( mCurrentTasks.containsKey( callListener ) )
+        {
+            mCurrentTasks.put( callListener, taskController );
+            if ( mCompositeTaskController.isCancelled() || mPolicyMet )
+                taskController.cancel(); // cancelled (or done) from inside call()
+        }
+        return true;
     }
 
     private synchronized void cancelOutstanding()
     {
-        for ( Iterator iterator = mCurrentTasks.values().iterator(); iterator.hasNext(); )
+        /* a cancelled task may call back right away and remove itself from mCurrentTasks */
+        Object[] taskControllers = mCurrentTasks.values().toArray();
+        for ( int i = 0; i < taskControllers.length; i++ )
         {
+            TaskController taskController = (TaskController) taskControllers[ i ];
+            if ( taskController == null )
+                continue; // call() hasn't returned yet
             try 
             {
-                ( (TaskController) iterator.next() ).cancel();
+                taskController.cancel();
             } 
             catch ( Throwable t )
             {
@@ -188,4 +484,92 @@ public class AsynchronousCallableExecutor
             }
         }
     }
+    
+    /**
+     * Goes through a list it owns, clearing each element as it's returned so
+     * bundles are let go of as they're started.
+     */
+    private static class ReleasingIterator implements Iterator
+    {
+        private final List mList;
+        private int mIndex;
+        
+        ReleasingIterator( List list )
+        {
+            mList = list;
+        }
+        
+        public boolean hasNext()
+        {
+            return mIndex < mList.size();
+        }
+        
+        public Object next()
+        {
+            Object next = mList.set( mIndex, null );
+            mIndex++;
+            return next;
+        }
+        
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+    
+    /**
+     * Decides when an AsynchronousCallableExecutor is done. Once it is, no more
+     * bundles are started, the ones still running are cancelled and the
+     * listener's handleFinally() is called; partial results of the cancelled
+     * ones are dropped.
+     */
+    public static final class CompletionPolicy
+    {
+        private static final int KIND_ALL = 0;
+        private static final int KIND_SUCCESSES = 1;
+        private static final int KIND_FAIL_FAST = 2;
+        
+        /** Every bundle runs to completion. */
+        public static final CompletionPolicy ALL = new CompletionPolicy( KIND_ALL, 0 );
+        
+        /** Done at the first success, for example the fastest replica's answer. */
+        public static final CompletionPolicy FIRST_SUCCESS = new CompletionPolicy( KIND_SUCCESSES, 1 );
+        
+        /** Done at the first exception; otherwise every bundle runs. */
+        public static final CompletionPolicy FAIL_FAST = new CompletionPolicy( KIND_FAIL_FAST, 0 );
+        
+        private final int mKind;
+        private final int mSuccesses;
+        
+        /**
+         * Done once the given number of bundles have succeeded (3 for a
+         * majority of 5 for example). If there aren't enough successes every
+         * bundle runs.
+         */
+        public static CompletionPolicy quorum( int successes )
+        {
+            if ( successes < 1 )
+                throw new IllegalArgumentException( "successes must be at least 1 - " + successes );
+            return new CompletionPolicy( KIND_SUCCESSES, successes );
+        }
+        
+        private CompletionPolicy( int kind, int successes )
+        {
+            mKind = kind;
+            mSuccesses = successes;
+        }
+        
+        boolean isMet( int successCount, boolean lastSucceeded )
+        {
+            switch ( mKind )
+            {
+                case KIND_SUCCESSES:
+                    return successCount >= mSuccesses;
+                case KIND_FAIL_FAST:
+                    return !lastSucceeded;
+                default:
+                    return false;
+            }
+        }
+    }
 }
@@ -29,6 +29,8 @@ package com.intelerad.tools.lib.concurrent;
 
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * A grab bag of misc utilities having to do with manipulating asynchronous
@@ -51,7 +53,7 @@ public class AsynchronousUtilities
     public static Object blockForResult( AsynchronousCallable call ) throws ExecutionException,
                                                                             CancellationException
     {
-        Semaphore semaphore = new Semaphore( 1 );
+        Semaphore semaphore = new Semaphore( 0 );
 
         ResultListener resultListener = new ResultListener( semaphore );
 
@@ -74,6 +76,75 @@ public class AsynchronousUtilities
             return resultListener.mResult;
     }
 
+    /**
+     * Same as blockForResult( call ) but gives up after the given time. The
+     * call is cancelled if it times out.
+     * 
+     * @param call
+     *            to block on
+     * @param timeout
+     * @param unit
+     * @return the result of the call (as would be returned by handleSuccess())
+     * @throws ExecutionException if the asynchronous call returns an exception
+     * @throws CancellationException if the current thread is interrupted.
+     * @throws TimeoutException if the call didn't return in time.
+     */
+    public static Object blockForResult( AsynchronousCallable call, long timeout, TimeUnit unit ) throws ExecutionException,
+                                                                                                      CancellationException,
+                                                                                                      TimeoutException
+    {
+        Semaphore semaphore = new Semaphore( 0 );
+
+        ResultListener resultListener = new ResultListener( semaphore );
+
+        TaskController taskController = call.call( resultListener );
+        try
+        {
+            if ( !semaphore.tryAcquire( timeout, unit ) )
+            {
+                taskController.cancel();
+                throw new TimeoutException();
+            }
+        }
+        catch ( InterruptedException ex )
+        {
+            taskController.cancel();
+            throw new CancellationException();
+        }
+
+        if ( resultListener.mCancelled )
+            throw new CancellationException();
+        else if ( resultListener.mException != null )
+            throw new ExecutionException( resultListener.mException );
+        else
+            return resultListener.mResult;
+    }
+    
+    /**
+     * Returns an AsynchronousCallable that makes the given call but gives up
+     * on it after the given time: the call is cancelled through its
+     * TaskController and the CallListener gets a TimeoutException through
+     * handleException() instead of handleCancel().
+     * <p>
+     * The timeouts are kept by the shared HashedWheelTimer so no thread is
+     * used per call. They're accurate to about 10ms.
+     * 
+     * @param call
+     * @param timeout
+     * @param unit
+     * @return the call with a timeout.
+     */
+    public static AsynchronousCallable withTimeout( final AsynchronousCallable call, final long timeout, final TimeUnit unit )
+    {
+        return new AsynchronousCallable()
+        {
+            public TaskController call( CallListener callListener )
+            {
+                return new TimeoutListener( callListener ).start( call, timeout, unit );
+            }
+        };
+    }
+
     /**
      * Made for internal use by blockForResult. Is a glorified handler/struct
      * hybrid. This class should not be used to demonstrate proper encapsulation
@@ -112,4 +183,170 @@ public class AsynchronousUtilities
             mResult = result;
         }
     }
+    
+    /**
+     * Made for internal use by withTimeout. Turns the cancel caused by the
+     * timeout into a TimeoutException, and is the TaskController handed back
+     * to the caller.
+     */
+    private static class TimeoutListener extends CallListenerWrapper implements TaskController, Runnable
+    {
+        /*
+         * Changed under the lock; volatile for get() and isCancelled(). The
+         * call can finish, on any thread, before call() returns so the timer
+         * is started before it and checks mFinished.
+         */
+        private volatile TaskController mTaskController;
+        private volatile boolean mTimedOut;
+        private Cancellable mTimeout;
+        private boolean mFinished;
+        private boolean mCancelled;
+        
+        public TimeoutListener( CallListener listener )
+        {
+            super( listener );
+        }
+        
+        TaskController start( AsynchronousCallable call, long timeout, TimeUnit unit )
+        {
+            Cancellable timer = HashedWheelTimer.getDefault().schedule( this, timeout, unit );
+            synchronized ( this )
+            {
+                if ( mFinished )
+                    timer.cancel();
+                else
+                    mTimeout = timer;
+            }
+            
+            TaskController taskController = call.call( this );
+            boolean cancel;
+            synchronized ( this )
+            {
+                mTaskController = taskController;
+                cancel = !mFinished && ( mTimedOut || mCancelled ); // while call() was running
+            }
+            if ( cancel )
+                taskController.cancel();
+            return this;
+        }
+        
+        /** Called by the timer */
+        public void run()
+        {
+            TaskController taskController;
+            synchronized ( this )
+            {
+                taskController = mTaskController;
+                
+                /* done but not delivered yet: the result made it in time */
+                if ( mFinished || mCancelled || taskController != null && taskController.isDone() )
+                    return;
+                mTimedOut = true;
+            }
+            if ( taskController != null )
+                taskController.cancel();
+        }
+        
+        /**
+         * The call has an outcome: the timer can't time it out anymore.
+         * 
+         * @return true if the timer had already fired
+         */
+        private boolean finished()
+        {
+            Cancellable timeout;
+            boolean timedOut;
+            synchronized ( this )
+            {
+                mFinished = true;
+                timeout = mTimeout;
+                mTimeout = null;
+                timedOut = mTimedOut;
+            }
+            if ( timeout != null )
+                timeout.cancel();
+            return timedOut;
+        }
+        
+        public void handleSuccess( Object result )
+        {
+            finished();
+            mListener.handleSuccess( result );
+        }
+        
+        public void handleException( Exception exception )
+        {
+            finished();
+            mListener.handleException( exception );
+        }
+        
+        public void handleCancel()
+        {
+            if ( finished() )
+                mListener.handleException( new TimeoutException() );
+            else
+                mListener.handleCancel();
+        }
+        
+        //Task controller stuff..
+        public void cancel()
+        {
+            TaskController taskController;
+            Cancellable timeout;
+            synchronized ( this )
+            {
+                if ( mTimedOut )
+                    return;
+                mCancelled = true;
+                taskController = mTaskController;
+                timeout = mTimeout;
+                mTimeout = null;
+            }
+            if ( timeout != null )
+                timeout.cancel();
+            if ( taskController != null )
+                taskController.cancel();
+        }
+        
+        public Object get() throws ExecutionException, InterruptedException, CancellationException
+        {
+            try
+            {
+                return mTaskController.get();
+            }
+            catch ( CancellationException ex )
+            {
+                if ( mTimedOut )
+                    throw new ExecutionException( new TimeoutException() );
+                throw ex;
+            }
+        }
+        
+        public Object get( long timeout, TimeUnit unit ) throws ExecutionException,
+                                                               InterruptedException,
+                                                               TimeoutException,
+                                                               CancellationException
+        {
+            try
+            {
+                return mTaskController.get( timeout, unit );
+            }
+            catch ( CancellationException ex )
+            {
+                if ( mTimedOut )
+                    throw new ExecutionException( new TimeoutException() );
+                throw ex;
+            }
+        }
+        
+        public boolean isCancelled()
+        {
+            return mTaskController.isCancelled() && !mTimedOut;
+        }
+        
+        public boolean isDone()
+        {
+            return mTaskController.isDone();
+        }
+    }
 }
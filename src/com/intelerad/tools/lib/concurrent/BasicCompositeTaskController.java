@@ -28,10 +28,10 @@
 package com.intelerad.tools.lib.concurrent;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * The class where all the threading magic happens! This class is responsible
@@ -42,21 +42,109 @@ import java.util.concurrent.ExecutionException;
  * <p>
  * To use this method, init it with the CallListener you need to callback, and invoker representing the
  * thread to callback on (no synchronous invokers please!)
+ * <p>
+ * By default every partial result is dispatched through the invoker on its
+ * own. A PartialDelivery can be given to coalesce them into at most one
+ * dispatch per frame instead, which is all a progress UI needs.
+ * <p>
+ * Normally every partial result is kept and the whole list is the result of
+ * the task. In streaming mode (the constructor taking a PartialResultReducer)
+ * nothing is kept: partials are only delivered, and optionally folded into a
+ * single value by the reducer as they come in.
  */
 public class BasicCompositeTaskController implements TaskController
 {
     private BasicTaskController mBasicTaskController;
     private CompositeCallListener mListener;
-    private List mResults;
     private Invoker mInvoker;
     
+    private final Object mLock = new Object();
+    
+    /** All the partials, null in streaming mode. Guarded by mLock. */
+    private final List mResults;
+    
+    /*
+     * Used in streaming mode. Guarded by mLock.
+     */
+    private final PartialResultReducer mReducer;
+    private Object mReducedResult;
+    
+    /*
+     * Used when partials are coalesced. All guarded by mLock.
+     */
+    private final PartialDelivery mDelivery;
+    private List mPending;
+    private long mLastFlush;
+    private Cancellable mFlushTimeout;
+    
     public BasicCompositeTaskController( Cancellable cancellable, CompositeCallListener callListener, Invoker invoker )
     {
-        mResults = Collections.synchronizedList( new LinkedList() );
+        this( cancellable, callListener, invoker, PartialDelivery.EACH );
+    }
+    
+    /**
+     * @param delivery
+     *            how partial results are delivered to the listener.
+     */
+    public BasicCompositeTaskController( Cancellable cancellable,
+                                         CompositeCallListener callListener,
+                                         Invoker invoker,
+                                         PartialDelivery delivery )
+    {
+        this( cancellable, callListener, invoker, delivery, true, null, null );
+    }
+    
+    /**
+     * Makes a controller in streaming mode: partial results are not kept.
+     * Each one is folded into the result by the reducer (under a lock, in the
+     * order they come in, on the thread adding them) and the end result is
+     * given to the listener's handleReducedResult() if it's a
+     * ReducingCompositeCallListener.
+     * 
+     * @param delivery
+     *            how partial results are delivered to the listener.
+     * @param reducer
+     *            may be null to only deliver partials.
+     * @param initialValue
+     *            passed to the first call to the reducer
+     */
+    public BasicCompositeTaskController( Cancellable cancellable,
+                                         CompositeCallListener callListener,
+                                         Invoker invoker,
+                                         PartialDelivery delivery,
+                                         PartialResultReducer reducer,
+                                         Object initialValue )
+    {
+        this( cancellable, callListener, invoker, delivery, false, reducer, initialValue );
+    }
+    
+    private BasicCompositeTaskController( Cancellable cancellable,
+                                          CompositeCallListener callListener,
+                                          Invoker invoker,
+                                          PartialDelivery delivery,
+                                          boolean retainResults,
+                                          PartialResultReducer reducer,
+                                          Object initialValue )
+    {
+        mDelivery = delivery;
+        mReducer = reducer;
+        mReducedResult = initialValue;
+        if ( delivery != PartialDelivery.EACH )
+        {
+            mPending = new ArrayList();
+            mLastFlush = System.nanoTime() - delivery.mIntervalNanos;
+        }
+
+        mResults = retainResults ? new ArrayList() : null;
         mListener = callListener;
         mInvoker = invoker;
         CallListener internalCallListener = new CallAdapter()
         {
+            public void handleSuccess( Object result )
+            {
+                if ( mResults == null && mListener instanceof ReducingCompositeCallListener )
+                    ( (ReducingCompositeCallListener) mListener ).handleReducedResult( result );
+            }
             public void handleCancel() {
                 mListener.handleCancel();
             }
@@ -70,11 +158,16 @@ public class BasicCompositeTaskController implements TaskController
     
     public void addPartialSuccess( final Object result, final Object context )
     {
-        synchronized ( mResults )
+        synchronized ( mLock )
         {
             if ( mBasicTaskController.hasTaskReturnedAResult() )
                 return;
-            mResults.add( new FunctionResultBundle( FunctionResult.createResult( result ), context ) );
+            if ( !isPassThrough() )
+            {
+                FunctionResultBundle bundle = new FunctionResultBundle( FunctionResult.createResult( result ), context );
+                if ( keep( bundle ) )
+                    return;
+            }
             Runnable runnable = new Runnable()
             {
                 public void run()
@@ -96,11 +189,16 @@ public class BasicCompositeTaskController implements TaskController
     
     public void addPartialException( final Exception ex, final Object context )
     {
-        synchronized ( mResults )
+        synchronized ( mLock )
         {
             if ( mBasicTaskController.hasTaskReturnedAResult() )
                 return;
-            mResults.add( new FunctionResultBundle( FunctionResult.createException( ex ), context ) );
+            if ( !isPassThrough() )
+            {
+                FunctionResultBundle bundle = new FunctionResultBundle( FunctionResult.createException( ex ), context );
+                if ( keep( bundle ) )
+                    return;
+            }
             Runnable runnable = new Runnable()
             {
                 public void run()
@@ -121,14 +219,130 @@ public class BasicCompositeTaskController implements TaskController
         mInvoker.invoke( runnable );
     }
     
+    /**
+     * @return true if partials are just dispatched as they come in, with
+     *         nothing to keep, reduce or coalesce.
+     */
+    private boolean isPassThrough()
+    {
+        return mResults == null && mReducer == null && mDelivery == PartialDelivery.EACH;
+    }
+    
+    /**
+     * Keeps, reduces and coalesces the partial as needed. Called with mLock
+     * locked.
+     * 
+     * @return true if the partial will be dispatched with the next frame.
+     */
+    private boolean keep( FunctionResultBundle bundle )
+    {
+        if ( mResults != null )
+            mResults.add( bundle );
+        if ( mReducer != null )
+            mReducedResult = mReducer.reduce( mReducedResult, bundle );
+        if ( mDelivery == PartialDelivery.EACH )
+            return false;
+        
+        coalesce( bundle );
+        return true;
+    }
+    
+    /**
+     * Holds on to the partial until the next frame. Called with mLock
+     * locked.
+     */
+    private void coalesce( FunctionResultBundle bundle )
+    {
+        if ( mDelivery.mLatestOnly )
+            mPending.clear();
+        mPending.add( bundle );
+        
+        if ( mFlushTimeout != null )
+            return; // the next frame is already scheduled
+        
+        long delay = mLastFlush + mDelivery.mIntervalNanos - System.nanoTime();
+        if ( delay <= 0 )
+        {
+            flush();
+            return;
+        }
+        
+        Runnable flush = new Runnable()
+        {
+            public void run()
+            {
+                synchronized ( mLock )
+                {
+                    mFlushTimeout = null;
+                    flush();
+                }
+            }
+        };
+        mFlushTimeout = HashedWheelTimer.getDefault().schedule( flush, delay, TimeUnit.NANOSECONDS );
+    }
+    
+    /**
+     * Dispatches the pending partials in one runnable. Called with mLock
+     * locked.
+     */
+    private void flush()
+    {
+        if ( mPending.isEmpty() )
+            return;
+        
+        final List batch = mPending;
+        mPending = new ArrayList();
+        mLastFlush = System.nanoTime();
+        Runnable runnable = new Runnable()
+        {
+            public void run()
+            {
+                if ( mBasicTaskController.isCancelled() )
+                    return;
+                
+                if ( mListener instanceof BatchCompositeCallListener )
+                {
+                    ( (BatchCompositeCallListener) mListener ).handlePartialResults( batch );
+                    return;
+                }
+                
+                for ( int i = 0; i < batch.size(); i++ )
+                {
+                    FunctionResultBundle bundle = (FunctionResultBundle) batch.get( i );
+                    FunctionResult functionResult = bundle.getFunctionResult();
+                    if ( functionResult.isException() )
+                        mListener.handlePartialException( (Exception) functionResult.getException(), bundle.getContext() );
+                    else
+                        mListener.handlePartialSuccess( functionResult.getResult(), bundle.getContext() );
+                }
+            }
+        };
+        dispatchRunnable( runnable );
+    }
+    
     public void finished()
     {
-        synchronized ( mResults )
+        synchronized ( mLock )
         {
             /*
-             * Done to trigger a handleFinally()..
+             * Whatever is waiting for the next frame goes now so it's
+             * delivered before handleFinally().
+             */
+            if ( mFlushTimeout != null )
+            {
+                mFlushTimeout.cancel();
+                mFlushTimeout = null;
+            }
+            if ( mPending != null )
+                flush();
+            
+
+            /*
+             * Done to trigger a handleFinally().. Nothing is added to
+             * mResults once the task has returned so it can be handed over
+             * as is.
              */
-            mBasicTaskController.setResult( new ArrayList( mResults ) );
+            mBasicTaskController.setResult( mResults != null ? mResults : mReducedResult );
         }
     }
     
@@ -145,6 +359,14 @@ public class BasicCompositeTaskController implements TaskController
         //mBasicTaskController.get() will deadlock.
     }
 
+    public Object get( long timeout, TimeUnit unit ) throws ExecutionException,
+                                                           InterruptedException,
+                                                           TimeoutException,
+                                                           CancellationException
+    {
+        throw new UnsupportedOperationException( "This method cannot be invoked for a this object." );
+    }
+
     public boolean isCancelled()
     {
         return mBasicTaskController.isCancelled();
@@ -154,4 +376,46 @@ public class BasicCompositeTaskController implements TaskController
     {
         return mBasicTaskController.isDone();
     }
+    
+    /**
+     * How partial results are delivered to the CompositeCallListener.
+     */
+    public static final class PartialDelivery
+    {
+        /** Each partial result is dispatched through the invoker as it comes in. */
+        public static final PartialDelivery EACH = new PartialDelivery( 0, false );
+        
+        private final long mIntervalNanos;
+        private final boolean mLatestOnly;
+        
+        /**
+         * Partial results are dispatched at most once per interval. All
+         * partials since the last dispatch are delivered together: to
+         * handlePartialResults() if the listener is a
+         * BatchCompositeCallListener, otherwise one after the other in the
+         * same runnable.
+         */
+        public static PartialDelivery batched( long interval, TimeUnit unit )
+        {
+            return new PartialDelivery( unit.toNanos( interval ), false );
+        }
+        
+        /**
+         * Partial results are dispatched at most once per interval and only
+         * the newest one since the last dispatch is delivered; the others are
+         * skipped.
+         */
+        public static PartialDelivery latest( long interval, TimeUnit unit )
+        {
+            return new PartialDelivery( unit.toNanos( interval ), true );
+        }
+        
+        private PartialDelivery( long intervalNanos, boolean latestOnly )
+        {
+            if ( intervalNanos < 0 )
+                throw new IllegalArgumentException( "interval must not be negative - " + intervalNanos );
+            mIntervalNanos = intervalNanos;
+            mLatestOnly = latestOnly;
+        }
+    }
 }
@@ -27,31 +27,60 @@
 
 package com.intelerad.tools.lib.concurrent;
 
-import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
 
 
-public final class BasicTaskController implements TaskController
+/**
+ * The state of the task is kept in a single int (mState) that only changes
+ * through compare-and-set, so none of the methods lock. Threads waiting in
+ * get() are kept in a lock-free stack and parked.
+ * <p>
+ * State bits:<br>
+ * COMPLETING - setResult() or setException() won the race and is storing the
+ * outcome.<br>
+ * RETURNED - setResult(), setException() or cancel() has been called and the
+ * callback has been dispatched.<br>
+ * CANCELLED - cancel() has been called.<br>
+ * COMMITTED - the outcome has been delivered (callback or get()) and can't be
+ * cancelled anymore.<br>
+ * DISPATCHED - the callback has been made.
+ * <p>
+ * The controller is itself the Runnable handed to the Invoker for the
+ * callback so completing a task doesn't allocate anything.
+ */
+public final class BasicTaskController implements TaskController, Runnable
 {
-    private CallListener mListener;
-    private Invoker mInvoker;
+    private static final int COMPLETING = 1;
+    private static final int RETURNED = 2;
+    private static final int CANCELLED = 4;
+    private static final int COMMITTED = 8;
+    private static final int DISPATCHED = 16;
     
-    /** The task has finished and returned a result or exception */
-    private boolean mTaskHasReturnedAResult;
-
-    /**
-     * The task has finished and returned a result or exception and the result
-     * has been returned using the callback or the get() thereby making it
-     * impossible to cancel this task
-     */
-    private boolean mCommittedToAResult;
+    private static final AtomicIntegerFieldUpdater mStateUpdater =
+        AtomicIntegerFieldUpdater.newUpdater( BasicTaskController.class, "mState" );
+    private static final AtomicReferenceFieldUpdater mWaitersUpdater =
+        AtomicReferenceFieldUpdater.newUpdater( BasicTaskController.class, WaitNode.class, "mWaiters" );
     
-    private boolean mCancelled;
+    private final CallListener mListener;
+    private final Invoker mInvoker;
+    private final Cancellable mCancellable;
     
+    private volatile int mState;
+    
+    /** Threads blocked in get() */
+    private volatile WaitNode mWaiters;
+    
+    /*
+     * Written before RETURNED is set and only read after RETURNED has been
+     * seen so they don't need to be volatile.
+     */
     private Object mResult;
     private Throwable mException;
-    private Cancellable mCancellable;
-    private FunctionResult mGetFunctionResult;
     
     
     /**
@@ -76,15 +105,15 @@ public final class BasicTaskController implements TaskController
      * 
      * @param result
      */
-    public final synchronized void setResult( Object result )
+    public final void setResult( Object result )
     {
-        if ( hasTaskReturnedAResult() ) 
+        if ( !startCompleting() ) 
             return;
         mResult = result;
-        fireRunnableIfNeeded();
+        finishCompleting();
     }
     
-    public final synchronized void setException( Throwable ex )
+    public final void setException( Throwable ex )
     {
         if ( hasTaskReturnedAResult() ) 
             return;
@@ -94,107 +123,123 @@ public final class BasicTaskController implements TaskController
         if ( !isAnError && !( ex instanceof Exception ) )
             throw new IllegalArgumentException( "Throwable argument must be either an exception or an Error - " + ex );
         
+        if ( !startCompleting() ) 
+            return;
+        
         if ( isAnError )
             mException = new UnexpectedErrorException( ex ); //part of a fix to stop Errors from causing havoc in CallableUtilities.execute
         else
             mException = ex;
-        fireRunnableIfNeeded();
+        finishCompleting();
     }
 
     /**
      * @return true if a setResult() or setException() or cancel() has been called. 
      */
-    final synchronized boolean hasTaskReturnedAResult()
+    final boolean hasTaskReturnedAResult()
     {
-        return mTaskHasReturnedAResult;
+        return ( mState & RETURNED ) != 0;
     }
     
-    private final synchronized void fireRunnableIfNeeded()
+    /**
+     * @return true if the caller may store the outcome.
+     */
+    private boolean startCompleting()
     {
-        if ( hasTaskReturnedAResult() ) 
-            return;
-
-        mTaskHasReturnedAResult = true;
-        notifyAll();
-        Runnable finallyRunnable = new Runnable()
+        for (;;)
         {
-            public void run()
-            {
-                try
-                {
-                    /*
-                     * we only choose which of the handleXXX() to call at the
-                     * time when the callback is being made because someone
-                     * might have cancelled during the time when the callback
-                     * was made and when it executes. This allows us to
-                     * guarantee that if you are cancelling on the invoker
-                     * thread that you will get handleCancel() called.
-                     */
-
-                    getRunnable().run(); 
-                }
-                finally
-                {
-                    mListener.handleFinally();
-                }
-            }
-        };
-        mInvoker.invoke( finallyRunnable );
+            int state = mState;
+            if ( ( state & ( COMPLETING | RETURNED ) ) != 0 )
+                return false;
+            if ( mStateUpdater.compareAndSet( this, state, state | COMPLETING ) )
+                return true;
+        }
     }
     
-    private final Runnable getRunnable()
+    private void finishCompleting()
     {
-        try 
+        for (;;)
         {
-            final Object result = getPrivate();
-            return new Runnable() 
-            {
-                public void run()
-                {
-                    mListener.handleSuccess( result );
-                }
-            };
+            /* cancel() may have set CANCELLED in the mean time */
+            int state = mState;
+            if ( mStateUpdater.compareAndSet( this, state, ( state & ~COMPLETING ) | RETURNED ) )
+                break;
         }
-        catch ( CancellationException ex )
+        fireRunnable();
+    }
+    
+    /**
+     * Called once, by whoever set RETURNED.
+     */
+    private void fireRunnable()
+    {
+        releaseWaiters();
+        mInvoker.invoke( this );
+    }
+    
+    /**
+     * Makes the callback. This is the Runnable given to the Invoker; it must
+     * not be called by anyone else (it does nothing if called before the task
+     * has returned or more than once).
+     */
+    public final void run()
+    {
+        for (;;)
         {
-            return new Runnable() 
-            {
-                public void run()
-                {
-                    mListener.handleCancel();
-                }
-            };
+            int state = mState;
+            if ( ( state & RETURNED ) == 0 || ( state & DISPATCHED ) != 0 )
+                return;
+            if ( mStateUpdater.compareAndSet( this, state, state | DISPATCHED ) )
+                break;
         }
-        catch ( final ExecutionException ex )
+        
+        try
         {
-            return new Runnable()
-            {
-                public void run()
-                {
-                    if ( ex.getCause() instanceof Exception )
-                        mListener.handleException( (Exception) ex.getCause() );
-                    else
-                        mListener.handleException( ex );
-                }
-            };
+            /*
+             * we only choose which of the handleXXX() to call at the
+             * time when the callback is being made because someone
+             * might have cancelled during the time when the callback
+             * was made and when it executes. This allows us to
+             * guarantee that if you are cancelling on the invoker
+             * thread that you will get handleCancel() called.
+             */
+            int state = commit();
+            if ( ( state & CANCELLED ) != 0 )
+                mListener.handleCancel();
+            else if ( mException instanceof Exception )
+                mListener.handleException( (Exception) mException );
+            else if ( mException != null )
+                mListener.handleException( new ExecutionException( mException ) );
+            else
+                mListener.handleSuccess( mResult );
         }
-        catch ( Throwable ex )
+        finally
         {
-            throw new RuntimeException( ex );
+            mListener.handleFinally();
         }
     }
 
-    /////////////////// TaskController \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+    /////////////////// TaskController \\\\\\\\\\\\\\\
     public final void cancel()
     {
-        synchronized ( this )
+        for (;;)
         {
-            if ( mCommittedToAResult )
+            int state = mState;
+            if ( ( state & ( COMMITTED | CANCELLED ) ) != 0 )
                 return;
-            if ( mCancelled )
-                return;
-            mCancelled    = true;
-            fireRunnableIfNeeded();
+            
+            /* if a result is being stored, the thread storing it fires the runnable */
+            boolean fire = ( state & ( COMPLETING | RETURNED ) ) == 0;
+            int newState = state | CANCELLED;
+            if ( fire )
+                newState |= RETURNED;
+            
+            if ( mStateUpdater.compareAndSet( this, state, newState ) )
+            {
+                if ( fire )
+                    fireRunnable();
+                break;
+            }
         }
         
         try
@@ -207,79 +252,181 @@ public final class BasicTaskController implements TaskController
         }
     }
     
-    public final synchronized Object get() throws ExecutionException, InterruptedException
+    public final Object get() throws ExecutionException, InterruptedException
     {
-        while ( ! hasTaskReturnedAResult() )
-            wait();
+        if ( !hasTaskReturnedAResult() )
+            awaitReturned( false, 0 );
         
         return getPrivate();
     }
-
+    
+    public final Object get( long timeout, TimeUnit unit ) throws ExecutionException,
+                                                                 InterruptedException,
+                                                                 TimeoutException
+    {
+        if ( !hasTaskReturnedAResult() && !awaitReturned( true, unit.toNanos( timeout ) ) )
+            throw new TimeoutException();
+        
+        return getPrivate();
+    }
+    
     /**
-     * @return
-     * @throws ExecutionException
+     * @return false if timed and the time ran out before the task returned.
      */
-    private final synchronized Object getPrivate() throws ExecutionException, CancellationException
+    private boolean awaitReturned( boolean timed, long nanos ) throws InterruptedException
     {
-        mCommittedToAResult = true;
-        
-        /*
-         * This bizarre mess to to make sure that both the CallListener and get()
-         * function return the same thing. We use the result of whoever asked
-         * first. The contract is the result is cancellable until it is
-         * delivered. Being delivered via a get() and being delivered through a
-         * callback are of equivalent worth.
-         */
-        if ( mGetFunctionResult == null )
+        long deadline = timed ? System.nanoTime() + nanos : 0;
+        WaitNode node = null;
+        boolean queued = false;
+        for (;;)
         {
-            Callable callable = new Callable()
+            if ( hasTaskReturnedAResult() )
+            {
+                if ( node != null )
+                    node.mThread = null;
+                return true;
+            }
+            if ( Thread.interrupted() )
+            {
+                if ( node != null )
+                    removeWaiter( node );
+                throw new InterruptedException();
+            }
+            
+            if ( node == null )
+            {
+                node = new WaitNode();
+            }
+            else if ( !queued )
+            {
+                WaitNode head = mWaiters;
+                node.mNext = head;
+                queued = mWaitersUpdater.compareAndSet( this, head, node );
+            }
+            else if ( timed )
             {
-                public Object call() throws Exception
+                nanos = deadline - System.nanoTime();
+                if ( nanos <= 0 )
                 {
-                    if ( isCancelled() )
-                        throw new CancellationException();
-
-                    if ( mException != null )
-                        throw new ExecutionException( mException );
-
-                    return mResult;
+                    removeWaiter( node );
+                    return false;
                 }
-            };
-
-            /* Execute and save the function's result */
-            mGetFunctionResult = FunctionResult.saveFunctionResult( callable );
-        }
-
-
-        try 
-        {
-            /* Replay the function result */
-            return mGetFunctionResult.call();
-        }
-        catch ( ExecutionException ex )
-        {
-            throw ex;
+                LockSupport.parkNanos( this, nanos );
+            }
+            else
+            {
+                LockSupport.park( this );
+            }
         }
-        catch ( CancellationException ex )
+    }
+    
+    /**
+     * Unlinks a waiter that gave up, along with any others that did, so
+     * repeated timed get()s don't pile up nodes on a long running task.
+     */
+    private void removeWaiter( WaitNode node )
+    {
+        node.mThread = null;
+        retry:
+        for (;;)
         {
-            throw ex;
+            WaitNode pred = null;
+            WaitNode next;
+            for ( WaitNode current = mWaiters; current != null; current = next )
+            {
+                next = current.mNext;
+                if ( current.mThread != null )
+                {
+                    pred = current;
+                }
+                else if ( pred != null )
+                {
+                    pred.mNext = next;
+                    if ( pred.mThread == null ) // pred gave up too, start over
+                        continue retry;
+                }
+                else if ( !mWaitersUpdater.compareAndSet( this, current, next ) )
+                {
+                    continue retry;
+                }
+            }
+            return;
         }
-        catch ( Exception ex ) //should never happen
+    }
+    
+    private void releaseWaiters()
+    {
+        WaitNode node = (WaitNode) mWaitersUpdater.getAndSet( this, null );
+        while ( node != null )
         {
-            throw new RuntimeException( ex );
+            Thread thread = node.mThread;
+            if ( thread != null )
+            {
+                node.mThread = null;
+                LockSupport.unpark( thread );
+            }
+            node = node.mNext;
         }
     }
+
+    /**
+     * Commits to the outcome (it can't be cancelled after this) and returns it.
+     * Both the CallListener and get() return the same thing: cancel() is
+     * refused once COMMITTED is set so the outcome can't change afterwards.
+     * The contract is the result is cancellable until it is delivered. Being
+     * delivered via a get() and being delivered through a callback are of
+     * equivalent worth.
+     * 
+     * @return the result
+     * @throws ExecutionException
+     */
+    private final Object getPrivate() throws ExecutionException, CancellationException
+    {
+        int state = commit();
+        
+        if ( ( state & CANCELLED ) != 0 )
+            throw new CancellationException();
+        
+        if ( mException != null )
+            throw new ExecutionException( mException );
+        
+        return mResult;
+    }
     
 
 
-    public synchronized boolean isCancelled()
+    /**
+     * Sets COMMITTED. Must only be called once the task has RETURNED.
+     * 
+     * @return the state at the time of the commit.
+     */
+    private int commit()
     {
-        return mCancelled;
+        for (;;)
+        {
+            int state = mState;
+            if ( ( state & COMMITTED ) != 0 || mStateUpdater.compareAndSet( this, state, state | COMMITTED ) )
+                return state;
+        }
     }
 
-    public synchronized boolean isDone()
+    public boolean isCancelled()
     {
-        return mTaskHasReturnedAResult;
+        return ( mState & CANCELLED ) != 0;
+    }
+
+    public boolean isDone()
+    {
+        return hasTaskReturnedAResult();
+    }
+    
+    /**
+     * A thread blocked in get().
+     */
+    private static final class WaitNode
+    {
+        volatile Thread mThread = Thread.currentThread();
+        volatile WaitNode mNext;
     }
     
     /**
@@ -293,4 +440,3 @@ public final class BasicTaskController implements TaskController
         }
     }
 }
-
@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2008, Intelerad Medical Systems Incorporated
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Intelerad Medical Systems Incorporated nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY Intelerad Medical Systems Incorporated ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL Intelerad Medical Systems Incorporated BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.intelerad.tools.lib.concurrent;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * An Invoker that coalesces runnables into batches. Runnables are appended to
+ * a queue and a single "drain" runnable is handed to the underlying Invoker
+ * while the queue isn't empty, so 5000 callbacks cost a handful of events on
+ * the event queue instead of 5000.
+ * <p>
+ * A drain runs queued runnables, in the order they were invoked, until the
+ * queue is empty or its time budget runs out. In the latter case it hands a
+ * new drain to the underlying Invoker and returns so other events (painting,
+ * input) get a turn.
+ * <p>
+ * Runnables invoked from inside a drain run in that same drain, before other
+ * events already waiting on the underlying queue.
+ * <p>
+ * If the underlying Invoker rejects a drain (or drops it, calling rejected()
+ * since the drain is a RejectableRunnable) the runnables queued at that point
+ * are dropped too: those that are RejectableRunnables get rejected() called.
+ * When invoke() itself fails to hand off a drain the exception is rethrown
+ * and only the runnable passed to that call is left out of the rejection.
+ */
+public final class BatchingInvoker implements Invoker
+{
+    private final Invoker mInvoker;
+    private final long mBudgetNanos;
+    
+    private final Queue mQueue = new ConcurrentLinkedQueue();
+    
+    /** true while a drain is waiting or running */
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+    
+    private final Runnable mDrain = new RejectableRunnable()
+    {
+        public void run()
+        {
+            drain();
+        }
+        
+        public void rejected( RejectedExecutionException reason )
+        {
+            rejectQueued( reason );
+        }
+    };
+    
+    /**
+     * @param invoker
+     *            to hand the drain runnables to.
+     * @param budget
+     *            how long a drain may run before it yields.
+     * @param unit
+     */
+    public BatchingInvoker( Invoker invoker, long budget, TimeUnit unit )
+    {
+        mInvoker = invoker;
+        mBudgetNanos = unit.toNanos( budget );
+    }
+    
+    public void invoke( Runnable runnable )
+    {
+        mQueue.add( runnable );
+        if ( mScheduled.get() || !mScheduled.compareAndSet( false, true ) )
+            return;
+        
+        try
+        {
+            mInvoker.invoke( mDrain );
+        }
+        catch ( RuntimeException ex )
+        {
+            /* the caller hears about its own runnable through the exception */
+            mQueue.remove( runnable );
+            rejectQueued( toRejection( ex ) );
+            throw ex;
+        }
+    }
+    
+    private void schedule()
+    {
+        if ( !mScheduled.get() && mScheduled.compareAndSet( false, true ) )
+            handOff();
+    }
+    
+    /** hands a drain to the underlying Invoker, only called while scheduled */
+    private void handOff()
+    {
+        try
+        {
+            mInvoker.invoke( mDrain );
+        }
+        catch ( RuntimeException ex )
+        {
+            rejectQueued( toRejection( ex ) );
+        }
+    }
+    
+    /** drops everything queued, only called while scheduled */
+    private void rejectQueued( RejectedExecutionException reason )
+    {
+        Runnable runnable;
+        while ( ( runnable = (Runnable) mQueue.poll() ) != null )
+        {
+            if ( !( runnable instanceof RejectableRunnable ) )
+                continue;
+            try
+            {
+                ( (RejectableRunnable) runnable ).rejected( reason );
+            }
+            catch ( Throwable t )
+            {
+                ConcurrencyLogManager.getDefault().printException( "Unexpected exception in rejected()", t );
+            }
+        }
+        
+        mScheduled.set( false );
+        
+        /* same race as at the end of drain() */
+        if ( !mQueue.isEmpty() )
+            schedule();
+    }
+    
+    private static RejectedExecutionException toRejection( RuntimeException ex )
+    {
+        if ( ex instanceof RejectedExecutionException )
+            return (RejectedExecutionException) ex;
+        return new RejectedExecutionException( ex );
+    }
+    
+    private void drain()
+    {
+        long deadline = System.nanoTime() + mBudgetNanos;
+        Runnable runnable;
+        while ( ( runnable = (Runnable) mQueue.poll() ) != null )
+        {
+            try
+            {
+                runnable.run();
+            }
+            catch ( Throwable t )
+            {
+                ConcurrencyLogManager.getDefault().printException( "Uncaught exception in invoked runnable", t );
+            }
+            
+            if ( System.nanoTime() - deadline >= 0 && !mQueue.isEmpty() )
+            {
+                handOff(); // still scheduled
+                return;
+            }
+        }
+        
+        mScheduled.set( false );
+        
+        /* a runnable may have been added after the last poll() but before the flag was cleared */
+        if ( !mQueue.isEmpty() )
+            schedule();
+    }
+}
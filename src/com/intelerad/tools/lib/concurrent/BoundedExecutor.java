@@ -27,9 +27,13 @@
 
 package com.intelerad.tools.lib.concurrent;
 
-import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Only allows a certain number of threads to run at the same time. Uses the
@@ -38,15 +42,62 @@ import java.util.concurrent.Executors;
  * 
  * Exists in Java 1.5. sort of.. (The newFixedThreadPool ALLOCATES thread for
  * the task. This implementation uses cached threads if available)
+ * <p>
+ * This class doesn't lock. Runnables go in a lock-free queue and the number of
+ * running runnables is kept in an AtomicInteger. Each permit is a "worker"
+ * runnable handed to the executor that keeps running queued runnables until
+ * the queue is empty, so there is no wrapping Runnable per task.
+ * <p>
+ * The number of runnables allowed to run at the same time is either fixed or
+ * is an AdaptiveConcurrencyLimit which moves the limit up and down depending
+ * on how long the runnables take to run.
+ * <p>
+ * The queue is unbounded unless a capacity is given. When a bounded queue is
+ * full the SaturationPolicy decides what happens to the new runnable. Queued
+ * runnables that are dropped (DISCARD_OLDEST) are told about it if they
+ * implement RejectableRunnable.
+ * <p>
+ * With a CoDelLoadShedder each queued runnable is timestamped and runnables
+ * that waited too long while the executor is overloaded are dropped with an
+ * OverloadException instead of being run.
  * 
  * @see Executors newFixedThreadPool(...);
  */
 public class BoundedExecutor implements Executor
 {
-    private LinkedList mQueue = new LinkedList();
-    private int mRunnableCount;
-    private int mConcurrency;
-    private Executor mExecutor;
+    /** Pass this as the queue capacity for an unbounded queue */
+    public static final int UNLIMITED = -1;
+    
+    /**
+     * How many times DISCARD_OLDEST looks for something to drop before it
+     * drops the new runnable instead
+     */
+    private static final int DISCARD_ATTEMPTS = 100;
+    
+    private final ConcurrentLinkedQueue mQueue = new ConcurrentLinkedQueue();
+    private final AtomicInteger mRunnableCount = new AtomicInteger();
+    private final AtomicInteger mQueueDepth = new AtomicInteger();
+    private final int mConcurrency;
+    
+    /** null if the concurrency is fixed */
+    private final AdaptiveConcurrencyLimit mAdaptiveLimit;
+    private final Executor mExecutor;
+    
+    /** One permit per free spot in the queue. null if the queue is unbounded */
+    private final Semaphore mQueueSlots;
+    private final SaturationPolicy mSaturationPolicy;
+    
+    /** null if work is never shed. If not null mQueue holds QueuedRunnables */
+    private final CoDelLoadShedder mLoadShedder;
+    
+    /** Handed to mExecutor once per permit. Runs queued runnables. */
+    private final Runnable mWorker = new Runnable()
+    {
+        public void run()
+        {
+            runQueued();
+        }
+    };
     
     public BoundedExecutor( int concurrency )
     {
@@ -61,44 +112,451 @@ public class BoundedExecutor implements Executor
     
     public BoundedExecutor( int concurrency, Executor executor )
     {
+        this( concurrency, null, executor, UNLIMITED, SaturationPolicy.ABORT, null );
+    }
+    
+    /**
+     * @param concurrency
+     *            number of runnables allowed to run at the same time
+     * @param executor
+     *            to run the runnables with
+     * @param queueCapacity
+     *            maximum number of runnables waiting to run (at least 1) or
+     *            UNLIMITED. Every runnable goes through the queue, even when
+     *            a permit is free, so there is no direct hand-off.
+     * @param saturationPolicy
+     *            what to do with a runnable when the queue is full
+     */
+    public BoundedExecutor( int concurrency, Executor executor, int queueCapacity, SaturationPolicy saturationPolicy )
+    {
+        this( concurrency, null, executor, queueCapacity, saturationPolicy, null );
+    }
+    
+    /**
+     * Builds a BoundedExecutor that sheds queued work when runnables wait in
+     * the queue for too long.
+     * 
+     * @param concurrency
+     *            number of runnables allowed to run at the same time
+     * @param executor
+     *            to run the runnables with
+     * @param loadShedder
+     *            decides when queued runnables are dropped
+     */
+    public BoundedExecutor( int concurrency, Executor executor, CoDelLoadShedder loadShedder )
+    {
+        this( concurrency, null, executor, UNLIMITED, SaturationPolicy.ABORT, loadShedder );
+    }
+    
+    /**
+     * Builds a BoundedExecutor whose concurrency limit is adjusted using the
+     * time each runnable takes to run.
+     * 
+     * @param adaptiveLimit
+     *            decides how many runnables can run at the same time
+     * @param executor
+     *            to run the runnables with
+     */
+    public BoundedExecutor( AdaptiveConcurrencyLimit adaptiveLimit, Executor executor )
+    {
+        this( adaptiveLimit, executor, UNLIMITED, SaturationPolicy.ABORT );
+    }
+    
+    /**
+     * @param adaptiveLimit
+     *            decides how many runnables can run at the same time
+     * @param executor
+     *            to run the runnables with
+     * @param queueCapacity
+     *            maximum number of runnables waiting to run or UNLIMITED
+     * @param saturationPolicy
+     *            what to do with a runnable when the queue is full
+     */
+    public BoundedExecutor( AdaptiveConcurrencyLimit adaptiveLimit,
+                            Executor executor,
+                            int queueCapacity,
+                            SaturationPolicy saturationPolicy )
+    {
+        this( adaptiveLimit.getMaximumLimit(), adaptiveLimit, executor, queueCapacity, saturationPolicy, null );
+    }
+    
+    /**
+     * @param adaptiveLimit
+     *            decides how many runnables can run at the same time
+     * @param executor
+     *            to run the runnables with
+     * @param loadShedder
+     *            decides when queued runnables are dropped
+     */
+    public BoundedExecutor( AdaptiveConcurrencyLimit adaptiveLimit, Executor executor, CoDelLoadShedder loadShedder )
+    {
+        this( adaptiveLimit.getMaximumLimit(), adaptiveLimit, executor, UNLIMITED, SaturationPolicy.ABORT, loadShedder );
+    }
+    
+    private BoundedExecutor( int concurrency,
+                             AdaptiveConcurrencyLimit adaptiveLimit,
+                             Executor executor,
+                             int queueCapacity,
+                             SaturationPolicy saturationPolicy,
+                             CoDelLoadShedder loadShedder )
+    {
+        if ( saturationPolicy == null )
+            throw new NullPointerException( "saturationPolicy" );
+        if ( queueCapacity < 1 && queueCapacity != UNLIMITED )
+            throw new IllegalArgumentException( "Bad queue capacity - " + queueCapacity );
+        
         mConcurrency = concurrency;
+        mAdaptiveLimit = adaptiveLimit;
         mExecutor = executor;
+        mQueueSlots = queueCapacity == UNLIMITED ? null : new Semaphore( queueCapacity );
+        mSaturationPolicy = saturationPolicy;
+        mLoadShedder = loadShedder;
     }
     
-    public synchronized void execute( Runnable command )
+    /**
+     * Queues the runnable to be run when there is a free permit.
+     * 
+     * @throws RejectedExecutionException
+     *             if the queue is full and the SaturationPolicy is ABORT or the
+     *             wait of a blocking policy timed out (or was interrupted)
+     */
+    public void execute( Runnable command )
     {
-        mQueue.add( command );
-        startNewRunnable();
+        if ( command == null )
+            throw new NullPointerException( "command" );
+        if ( mQueueSlots != null && !mQueueSlots.tryAcquire() && !handleQueueFull( command ) )
+            return;
+        
+        Object queued = mLoadShedder == null ? (Object) command : new QueuedRunnable( command, System.nanoTime() );
+        mQueue.offer( queued );
+        mQueueDepth.incrementAndGet();
+        try
+        {
+            startNewRunnable();
+        }
+        catch ( RuntimeException ex )
+        {
+            /*
+             * The caller is told the command was rejected (and may tell the
+             * command through rejected()) so it must not run later. If a
+             * worker already took it, it runs and the failure isn't ours to
+             * report.
+             */
+            if ( !mQueue.remove( queued ) )
+                return;
+            mQueueDepth.decrementAndGet();
+            if ( mQueueSlots != null )
+                mQueueSlots.release();
+            throw ex;
+        }
     }
     
-    public synchronized void startNewRunnable()
+    /**
+     * @return true if a queue slot was taken for the command, false if the
+     *         command has been dealt with some other way.
+     */
+    private boolean handleQueueFull( Runnable command )
     {
-        while ( !mQueue.isEmpty() && mRunnableCount < mConcurrency )
+        switch ( mSaturationPolicy.mKind )
         {
-            final Runnable toRun = (Runnable) mQueue.removeFirst();
-            mRunnableCount++;
-
-            Runnable wrappingRunnable = new Runnable()
-            {
-                public void run()
+            case SaturationPolicy.KIND_CALLER_RUNS:
+                command.run();
+                return false;
+                
+            case SaturationPolicy.KIND_DISCARD_OLDEST:
+                for ( int attempt = 0; attempt < DISCARD_ATTEMPTS; attempt++ )
                 {
-                    try
+                    Object oldest = mQueue.poll();
+                    if ( oldest != null )
                     {
-                        toRun.run();
+                        /* the new command takes over the slot of the oldest */
+                        mQueueDepth.decrementAndGet();
+                        reject( unwrap( oldest ), new RejectedExecutionException( "Discarded to make room for a newer runnable" ) );
+                        return true;
                     }
-                    finally
+                    if ( mQueueSlots.tryAcquire() )
+                        return true;
+                    
+                    /* the slots are taken by runnables that haven't been queued yet */
+                    Thread.yield();
+                }
+                
+                /* nothing older to drop, so the new command is the one dropped */
+                reject( command, new RejectedExecutionException( "Discarded, the queue stayed full with nothing older to drop" ) );
+                return false;
+                
+            case SaturationPolicy.KIND_BLOCK:
+                try
+                {
+                    if ( mSaturationPolicy.mTimeoutNanos < 0 )
                     {
-                        endRunnable();
+                        mQueueSlots.acquire();
+                        return true;
                     }
+                    if ( mQueueSlots.tryAcquire( mSaturationPolicy.mTimeoutNanos, TimeUnit.NANOSECONDS ) )
+                        return true;
+                    throw new RejectedExecutionException( "Timed out waiting for room in the queue" );
+                }
+                catch ( InterruptedException ex )
+                {
+                    Thread.currentThread().interrupt();
+                    throw new RejectedExecutionException( "Interrupted while waiting for room in the queue" );
                 }
-            };
-            mExecutor.execute( wrappingRunnable );
+                
+            default:
+                throw new RejectedExecutionException( "Queue is full" );
+        }
+    }
+    
+    private Runnable unwrap( Object queued )
+    {
+        if ( mLoadShedder == null )
+            return (Runnable) queued;
+        return ( (QueuedRunnable) queued ).mRunnable;
+    }
+    
+    private static void reject( Runnable runnable, RejectedExecutionException reason )
+    {
+        if ( !( runnable instanceof RejectableRunnable ) )
+            return;
+        try
+        {
+            ( (RejectableRunnable) runnable ).rejected( reason );
+        }
+        catch ( Throwable t )
+        {
+            ConcurrencyLogManager.getDefault().printException( "Unexpected exception in rejected()", t );
         }
     }
     
-    public synchronized void endRunnable()
+    public void startNewRunnable()
     {
-        mRunnableCount--;
+        while ( tryAcquirePermit() )
+        {
+            try
+            {
+                mExecutor.execute( mWorker );
+            }
+            catch ( RuntimeException ex )
+            {
+                mRunnableCount.decrementAndGet();
+                throw ex;
+            }
+        }
+    }
+    
+    public void endRunnable()
+    {
+        mRunnableCount.decrementAndGet();
         startNewRunnable();
     }
+    
+    /**
+     * Takes a permit if there is work queued and fewer than mConcurrency
+     * runnables running.
+     * <p>
+     * execute() queues then checks the count while a finishing worker gives
+     * back its permit then checks the queue. One of the two always sees the
+     * other's change so a queued runnable is never left behind.
+     */
+    private boolean tryAcquirePermit()
+    {
+        for (;;)
+        {
+            int count = mRunnableCount.get();
+            if ( count >= getConcurrencyLimit() || mQueue.isEmpty() )
+                return false;
+            if ( mRunnableCount.compareAndSet( count, count + 1 ) )
+                return true;
+        }
+    }
+    
+    /**
+     * Gives back a permit if more runnables are running than the limit allows
+     * (which happens when an AdaptiveConcurrencyLimit lowers the limit).
+     */
+    private boolean releasePermitIfOverLimit()
+    {
+        for (;;)
+        {
+            int count = mRunnableCount.get();
+            if ( count <= getConcurrencyLimit() )
+                return false;
+            if ( mRunnableCount.compareAndSet( count, count - 1 ) )
+                return true;
+        }
+    }
+    
+    private void runQueued()
+    {
+        for (;;)
+        {
+            if ( mAdaptiveLimit != null && releasePermitIfOverLimit() )
+                return;
+            
+            Object queued = mQueue.poll();
+            if ( queued == null )
+            {
+                mRunnableCount.decrementAndGet();
+                if ( tryAcquirePermit() )
+                    continue;
+                return;
+            }
+            mQueueDepth.decrementAndGet();
+            if ( mQueueSlots != null )
+                mQueueSlots.release();
+            
+            Runnable toRun = unwrap( queued );
+            if ( mLoadShedder != null )
+            {
+                long now = System.nanoTime();
+                if ( mLoadShedder.shouldShed( now - ( (QueuedRunnable) queued ).mEnqueueTime, now ) )
+                {
+                    reject( toRun, new OverloadException( "Dropped, the executor is overloaded" ) );
+                    continue;
+                }
+            }
+            
+            if ( mAdaptiveLimit == null )
+                runNow( toRun );
+            else
+                runAndMeasure( toRun );
+        }
+    }
+    
+    private void runNow( Runnable toRun )
+    {
+        boolean finished = false;
+        try
+        {
+            toRun.run();
+            finished = true;
+        }
+        finally
+        {
+            if ( !finished )
+                endRunnable();
+        }
+    }
+    
+    private void runAndMeasure( Runnable toRun )
+    {
+        int inFlight = mRunnableCount.get();
+        long start = System.nanoTime();
+        try
+        {
+            runNow( toRun );
+        }
+        finally
+        {
+            if ( mAdaptiveLimit.addSample( System.nanoTime() - start, inFlight ) )
+                startNewRunnable();
+        }
+    }
+    
+    /**
+     * @return the number of runnables currently allowed to run at the same
+     *         time.
+     */
+    public int getConcurrencyLimit()
+    {
+        if ( mAdaptiveLimit == null )
+            return mConcurrency;
+        return mAdaptiveLimit.getLimit();
+    }
+    
+    /**
+     * @return the AdaptiveConcurrencyLimit (for its run time statistics) or
+     *         null if the concurrency is fixed.
+     */
+    public AdaptiveConcurrencyLimit getAdaptiveLimit()
+    {
+        return mAdaptiveLimit;
+    }
+    
+    /**
+     * @return the number of runnables currently running.
+     */
+    public int getRunningCount()
+    {
+        return mRunnableCount.get();
+    }
+    
+    /**
+     * @return the number of runnables waiting to run.
+     */
+    public int getQueueDepth()
+    {
+        return mQueueDepth.get();
+    }
+    
+    /**
+     * @return the CoDelLoadShedder or null if work is never shed.
+     */
+    public CoDelLoadShedder getLoadShedder()
+    {
+        return mLoadShedder;
+    }
+    
+    /**
+     * A queued runnable and the time it was queued at. Only used with a
+     * CoDelLoadShedder.
+     */
+    private static final class QueuedRunnable
+    {
+        private final Runnable mRunnable;
+        private final long mEnqueueTime;
+        
+        QueuedRunnable( Runnable runnable, long enqueueTime )
+        {
+            mRunnable = runnable;
+            mEnqueueTime = enqueueTime;
+        }
+    }
+    
+    /**
+     * Decides what BoundedExecutor.execute() does when the queue is full.
+     */
+    public static final class SaturationPolicy
+    {
+        private static final int KIND_ABORT = 0;
+        private static final int KIND_CALLER_RUNS = 1;
+        private static final int KIND_DISCARD_OLDEST = 2;
+        private static final int KIND_BLOCK = 3;
+        
+        /** execute() throws a RejectedExecutionException. */
+        public static final SaturationPolicy ABORT = new SaturationPolicy( KIND_ABORT, 0 );
+        
+        /** The runnable is run right away on the thread calling execute(). */
+        public static final SaturationPolicy CALLER_RUNS = new SaturationPolicy( KIND_CALLER_RUNS, 0 );
+        
+        /**
+         * The oldest queued runnable is dropped to make room. It is told
+         * through RejectableRunnable.rejected() if it implements it.
+         */
+        public static final SaturationPolicy DISCARD_OLDEST = new SaturationPolicy( KIND_DISCARD_OLDEST, 0 );
+        
+        /** execute() waits until there is room in the queue. */
+        public static final SaturationPolicy BLOCK = new SaturationPolicy( KIND_BLOCK, -1 );
+        
+        private final int mKind;
+        private final long mTimeoutNanos;
+        
+        /**
+         * execute() waits up to timeout for room in the queue then throws a
+         * RejectedExecutionException.
+         */
+        public static SaturationPolicy block( long timeout, TimeUnit unit )
+        {
+            if ( timeout < 0 )
+                throw new IllegalArgumentException( "timeout must not be negative - " + timeout );
+            return new SaturationPolicy( KIND_BLOCK, unit.toNanos( timeout ) );
+        }
+        
+        private SaturationPolicy( int kind, long timeoutNanos )
+        {
+            mKind = kind;
+            mTimeoutNanos = timeoutNanos;
+        }
+    }
 }
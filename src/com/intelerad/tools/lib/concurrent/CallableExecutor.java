@@ -27,17 +27,19 @@
 
 package com.intelerad.tools.lib.concurrent;
 
-import java.util.LinkedList;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * The CallableExecutor currently is:
  * <p>
  * 1) An interface.<br>
  * 2) An implementation of that interface which uses a "thread cache" style
- * thread pool.<br>
+ * thread pool (a bounded WorkerThreadPool by default).<br>
  * 3) A set of static, asychronous method(s) for running Callables in said
  * thread pool.<br>
  * 4) Confused.
@@ -76,17 +78,38 @@ import java.util.concurrent.Executor;
  * 
  * @see java.util.concurrent.Executor
  */
-public class CallableExecutor implements TaskController
+public class CallableExecutor implements TaskController, RejectableRunnable
 {
     //////////////////// STATIC \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
     
-    private static SimpleThreadPool mSimpleThreadPool;
+    private static Executor mThreadPool;
     
+    /**
+     * @return the thread pool used by execute( callable, listener, invoker ).
+     *         If none has been set a WorkerThreadPool with the default sizes
+     *         is created.
+     */
     public static synchronized Executor getThreadPool()
     {
-        if ( mSimpleThreadPool == null )
-            mSimpleThreadPool = new SimpleThreadPool( 5 );
-        return mSimpleThreadPool;
+        if ( mThreadPool == null )
+            mThreadPool = new WorkerThreadPool();
+        return mThreadPool;
+    }
+    
+    /**
+     * Replaces the default thread pool. This is meant to be called at startup,
+     * before any callables are executed. Callables already submitted to the
+     * previous thread pool keep running there.
+     * 
+     * @param threadPool
+     *            to use for all subsequent calls to execute( callable,
+     *            listener, invoker )
+     */
+    public static synchronized void setThreadPool( Executor threadPool )
+    {
+        if ( threadPool == null )
+            throw new NullPointerException( "threadPool" );
+        mThreadPool = threadPool;
     }
     
     /**
@@ -125,14 +148,15 @@ public class CallableExecutor implements TaskController
      */
     public static TaskController execute( Callable callable, CallListener listener, Invoker invoker, Executor executor )
     {
-        final CallableExecutor task = new CallableExecutor( callable, listener, invoker );
-        executor.execute( new Runnable()
+        CallableExecutor task = new CallableExecutor( callable, listener, invoker );
+        try
         {
-            public void run()
-            {
-                task.run();
-            }
-        } );
+            executor.execute( task );
+        }
+        catch ( RejectedExecutionException ex )
+        {
+            task.rejected( ex );
+        }
         return task;
     }
     
@@ -140,15 +164,31 @@ public class CallableExecutor implements TaskController
     
     
     //////////////////// INSTANCE \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+    
+    /*
+     * The same instance is the Runnable given to the executor (to call the
+     * callable) and the Runnable given to the invoker (to make the callback)
+     * so a task doesn't allocate anything else unless it's cancelled. mPhase
+     * tells run() which of the two it's being asked to do.
+     */
+    private static final int NEW = 0;
+    private static final int RUNNING = 1;
+    /** The outcome is stored and this has been handed to the invoker */
+    private static final int FINISHED = 2;
+    /** cancel() was called before the outcome was stored */
+    private static final int CANCELLED = 3;
+    private static final int DELIVERED = 4;
+    
     private Callable mCallable;
     private CallListener mListener;
     private Invoker mInvoker;
     
+    private int mPhase = NEW;
     private boolean mDone;
     private boolean mCancelled;
     
     private Object mResult;
-    private Throwable mException;
+    private Exception mException;
     
     private CallableExecutor( Callable callable, CallListener listener, Invoker invoker )
     {
@@ -157,31 +197,37 @@ public class CallableExecutor implements TaskController
         mInvoker= invoker;
     }
     
-    private void run()
+    /**
+     * Called by the executor to call the callable and then by the invoker to
+     * make the callback. Not meant to be called by anyone else.
+     */
+    public void run()
+    {
+        int phase;
+        synchronized ( this )
+        {
+            phase = mPhase;
+            if ( phase == NEW )
+                mPhase = RUNNING;
+            else if ( phase == FINISHED )
+                mPhase = DELIVERED;
+        }
+        
+        if ( phase == NEW )
+            callCallable();
+        else if ( phase == FINISHED )
+            deliver();
+    }
+    
+    private void callCallable()
     {
         try
         {
-            mResult = mCallable.call();
-            Runnable runnable = new Runnable()
-            {
-                public void run()
-                {
-                    mListener.handleSuccess( mResult );
-                }
-            };
-            checkConditionsAndFinish( runnable );
+            finish( mCallable.call(), null );
         }
-        catch ( final Exception error )
+        catch ( Exception error )
         {
-            mException = error;
-            Runnable runnable = new Runnable()
-            {
-                public void run()
-                {
-                    mListener.handleException( error );
-                }
-            };
-            checkConditionsAndFinish( runnable );
+            finish( null, error );
         }
         catch( Throwable error )
         {
@@ -189,20 +235,81 @@ public class CallableExecutor implements TaskController
         }
     }
     
-    private synchronized void checkConditionsAndFinish( final Runnable runnable )
+    /**
+     * Called when the executor refuses or drops this task. The listener gets
+     * the RejectedExecutionException through handleException().
+     */
+    public void rejected( RejectedExecutionException reason )
+    {
+        synchronized ( this )
+        {
+            if ( mPhase != NEW )
+                return;
+            mPhase = RUNNING;
+        }
+        finish( null, reason );
+    }
+    
+    private void finish( Object result, Exception exception )
+    {
+        synchronized ( this )
+        {
+            if ( mDone )
+                return; //we've already called one of the three Worker methods.
+            mResult = result;
+            mException = exception;
+            mDone = true;
+            mPhase = FINISHED;
+            notifyAll();
+        }
+        mInvoker.invoke( this );
+    }
+    
+    private void deliver()
+    {
+        try
+        {
+            if ( mException != null )
+                mListener.handleException( mException );
+            else
+                mListener.handleSuccess( mResult );
+        }
+        finally
+        {
+            mListener.handleFinally();
+        }
+    }
+
+    
+    /////////////////// TaskController \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+    public void cancel()
     {
-        if ( mDone )
-            return; //we've already called one of the three Worker methods.
-        mDone     = true;
-        notifyAll();
+        boolean dispatchCancel;
+        synchronized ( this )
+        {
+            dispatchCancel = !mDone;
+            if ( dispatchCancel )
+            {
+                mDone = true;
+                mPhase = CANCELLED;
+                notifyAll();
+            }
+            mCancelled = true;
+        }
+        
+        if ( mCallable instanceof Cancellable )
+            ( (Cancellable) mCallable ).cancel();
         
-        Runnable finallyRunnable = new Runnable()
+        if ( !dispatchCancel )
+            return;
+        
+        Runnable runnable = new Runnable() 
         {
             public void run()
             {
                 try
                 {
-                    runnable.run();
+                    mListener.handleCancel();
                 }
                 finally
                 {
@@ -210,32 +317,35 @@ public class CallableExecutor implements TaskController
                 }
             }
         };
-        mInvoker.invoke( finallyRunnable );
+        mInvoker.invoke( runnable );
     }
-
     
-    /////////////////// TaskController \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
-    public synchronized void cancel()
+    public synchronized Object get() throws ExecutionException, InterruptedException
     {
-        Runnable runnable = new Runnable() 
-        {
-            public void run()
-            {
-                mListener.handleCancel();
-            }
-        };
-        if ( mCallable instanceof Cancellable )
-            ( (Cancellable) mCallable ).cancel();
+        while ( ! isDone() )
+            wait();
         
-        checkConditionsAndFinish( runnable );
-        mCancelled    = true;
+        return getOutcome();
     }
     
-    public synchronized Object get() throws ExecutionException, InterruptedException
+    public synchronized Object get( long timeout, TimeUnit unit ) throws ExecutionException,
+                                                                        InterruptedException,
+                                                                        TimeoutException
     {
+        long deadline = System.nanoTime() + unit.toNanos( timeout );
         while ( ! isDone() )
-            wait();
+        {
+            long remaining = deadline - System.nanoTime();
+            if ( remaining <= 0 )
+                throw new TimeoutException();
+            TimeUnit.NANOSECONDS.timedWait( this, remaining );
+        }
         
+        return getOutcome();
+    }
+    
+    private Object getOutcome() throws ExecutionException
+    {
         if ( isCancelled() )
             throw new CancellationException();
         
@@ -254,110 +364,4 @@ public class CallableExecutor implements TaskController
     {
         return mDone;
     }
-    
-    
-    /**
-     * This can be replaced in Java 1.5 with an Executor from the API.
-     */
-    private static class SimpleThreadPool implements Executor
-    {
-        /** For use in generating thread names */
-        private static volatile int mThreadCount = 0;
-        
-        private LinkedList mAvailableThreads = new LinkedList();
-        private final int mThreadsToCache;
-        
-        SimpleThreadPool( int threadToCache )
-        {
-            mThreadsToCache = threadToCache;
-        }
-        
-        public synchronized void execute( Runnable runnable )
-        {
-            ExecutorThread executorThread;
-            if ( mAvailableThreads.size() > 0 )
-                executorThread = (ExecutorThread) mAvailableThreads.removeLast();
-            else
-                executorThread = buildNewExecutorThread();
-            
-            executorThread.execute( runnable );
-        }
-        
-        
-        private synchronized void returnThread( ExecutorThread thread )
-        {
-            if ( mAvailableThreads.size() >= mThreadsToCache )
-                thread.close();
-            else
-                mAvailableThreads.addFirst( thread );
-        }
-        
-        
-        private ExecutorThread buildNewExecutorThread()
-        {
-            ExecutorThread executorThread = new ExecutorThread();
-            Thread thread = new Thread( executorThread, "Worker-" + ( mThreadCount++ ) );
-            thread.start();
-            return executorThread;
-        }
-        
-        private class ExecutorThread implements Runnable
-        {
-            private Runnable mToExecute;
-            private boolean mEnd = false;
-            
-            public void run()
-            {
-                for (;;)
-                {
-                    try
-                    {
-                        Runnable toRun = getRunnable();
-                        if ( toRun == null )
-                            return;
-                        toRun.run();
-                    } 
-                    catch (Throwable throwable )
-                    {
-                        ConcurrencyLogManager.getDefault().printException( "ExecutorThread failed.", throwable );
-                        return;
-                    }
-                    returnThread( this );
-                }
-            }
-            
-            private synchronized Runnable getRunnable() throws InterruptedException
-            {
-                for (;;)
-                {
-                    if ( mEnd )
-                        return null;
-                    if ( mToExecute != null )
-                    {
-                        Runnable toReturn = mToExecute;
-                        mToExecute = null;
-                        return toReturn;
-                    }
-                    else
-                    {
-                        wait();
-                    }
-                }
-            }
-            
-            public synchronized void close()
-            {
-                mEnd = true;
-                notifyAll();
-            }
-            
-            public synchronized void execute( Runnable runnable )
-            {
-                assert mToExecute == null;
-                
-                mToExecute = runnable;
-                notifyAll();
-            }
-        }
-    }
 }
@@ -30,6 +30,7 @@ package com.intelerad.tools.lib.concurrent;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
 
 
@@ -53,6 +54,27 @@ public class CallableUtilities
         return mSimpleThreadPool;
     }
     
+    /**
+     * Replaces the default thread pool. This is meant to be called at startup,
+     * before any callables are executed. For example, to run every callable
+     * on its own virtual thread:
+     * 
+     * <pre>
+     *   CallableUtilities.setDefaultThreadCache( VirtualThreadExecutor.getInstance() );
+     * </pre>
+     * 
+     * @param executor
+     *            to use for all subsequent calls to execute( callable,
+     *            listener, invoker )
+     * @see VirtualThreadExecutor
+     */
+    public static synchronized void setDefaultThreadCache( Executor executor )
+    {
+        if ( executor == null )
+            throw new NullPointerException( "executor" );
+        mSimpleThreadPool = executor;
+    }
+    
     /**
      * See other execute method. (Uses the default "thread cache" implementation of a thread pool)
      * 
@@ -74,6 +96,11 @@ public class CallableUtilities
      * <b>NOTE:</b> This method supports making use of the cancel() on
      * CancellableCallables and <b>will</b> make use of it if the Callable
      * implements cancellable.
+     * <p>
+     * If the executor refuses the callable (throws a
+     * RejectedExecutionException or drops it later through
+     * RejectableRunnable) the listener gets that exception through
+     * handleException().
      * 
      * @param callable
      *            to execute (can be a CancellableCallable).
@@ -88,7 +115,76 @@ public class CallableUtilities
     public static TaskController execute( Callable callable, CallListener listener, Invoker invoker, Executor executor )
     {
         final CallableRunner callableRunner = new CallableRunner( callable, listener, invoker );
-        executor.execute( callableRunner );
+        try
+        {
+            executor.execute( callableRunner );
+        }
+        catch ( RejectedExecutionException ex )
+        {
+            callableRunner.rejected( ex );
+        }
+        return callableRunner.getTaskController();
+    }
+    
+    /**
+     * Executes the callable after all callables previously submitted to the
+     * keyedExecutor with the same key have finished. Callables with different
+     * keys run in parallel.
+     * 
+     * @param callable
+     *            to execute (can be a CancellableCallable).
+     * @param listener
+     *            to callback (notify)
+     * @param invoker
+     *            to notify with
+     * @param keyedExecutor
+     *            to use to execute the callable
+     * @param key
+     *            callables with equal keys are run one at a time, in order
+     * @return a TaskController representing the asynchronous task
+     */
+    public static TaskController execute( Callable callable,
+                                          CallListener listener,
+                                          Invoker invoker,
+                                          KeyedSerialExecutor keyedExecutor,
+                                          Object key )
+    {
+        return execute( callable, listener, invoker, keyedExecutor.getExecutor( key ) );
+    }
+    
+    /**
+     * Executes the callable with a deadline. The deadlineExecutor starts
+     * callables earliest deadline first and drops the ones whose deadline has
+     * passed before they could start. The listener then gets a
+     * DeadlineExceededException through handleException().
+     * 
+     * @param callable
+     *            to execute (can be a CancellableCallable).
+     * @param listener
+     *            to callback (notify)
+     * @param invoker
+     *            to notify with
+     * @param deadlineExecutor
+     *            to use to execute the callable
+     * @param deadline
+     *            in milliseconds since the epoch
+     * @return a TaskController representing the asynchronous task
+     */
+    public static TaskController execute( Callable callable,
+                                          CallListener listener,
+                                          Invoker invoker,
+                                          DeadlineExecutor deadlineExecutor,
+                                          long deadline )
+    {
+        final CallableRunner callableRunner = new CallableRunner( callable, listener, invoker );
+        try
+        {
+            deadlineExecutor.execute( callableRunner, deadline );
+        }
+        catch ( RejectedExecutionException ex )
+        {
+            callableRunner.rejected( ex );
+        }
         return callableRunner.getTaskController();
     }
     
@@ -104,7 +200,7 @@ public class CallableUtilities
     }
     
     //////////////////// CLASSES \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
-    private static class CallableRunner implements Runnable
+    private static class CallableRunner implements RejectableRunnable, Cancellable
     {
         private Callable mCallable;
         private BasicTaskController mBasicTaskController;
@@ -112,15 +208,13 @@ public class CallableUtilities
         private CallableRunner( Callable callable, CallListener listener, Invoker invoker )
         {
             mCallable = callable;
-            Cancellable cancellable = new Cancellable()
-            {
-                public void cancel()
-                {
-                    if ( mCallable instanceof Cancellable )
-                        ( (Cancellable) mCallable ).cancel();
-                }
-            };
-            mBasicTaskController = new BasicTaskController( cancellable, listener, invoker );
+            mBasicTaskController = new BasicTaskController( this, listener, invoker );
+        }
+        
+        public void cancel()
+        {
+            if ( mCallable instanceof Cancellable )
+                ( (Cancellable) mCallable ).cancel();
         }
 
         public void run()
@@ -141,6 +235,11 @@ public class CallableUtilities
             }
         }
 
+        public void rejected( RejectedExecutionException reason )
+        {
+            mBasicTaskController.setException( reason );
+        }
+
         public TaskController getTaskController()
         {
             return mBasicTaskController;
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2008, Intelerad Medical Systems Incorporated
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Intelerad Medical Systems Incorporated nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY Intelerad Medical Systems Incorporated ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL Intelerad Medical Systems Incorporated BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.intelerad.tools.lib.concurrent;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides when BoundedExecutor should shed queued work, based on how long
+ * runnables wait in the queue (their "sojourn" time) rather than on how many
+ * there are. This is the CoDel (controlled delay) idea: a queue that is
+ * briefly long is fine, a queue where even the luckiest runnable waited more
+ * than the target for a whole interval is not going to drain by itself.
+ * <p>
+ * The smallest sojourn time is tracked for each interval. If it was above the
+ * target the executor is "overloaded" for the next interval and every
+ * runnable that waited more than twice the target is dropped instead of run.
+ * Runnables that implement RejectableRunnable get an OverloadException.
+ * <p>
+ * This class doesn't lock and is thread safe.
+ * 
+ * @see BoundedExecutor
+ */
+public class CoDelLoadShedder
+{
+    public static final long DEFAULT_TARGET_MILLIS = 5;
+    public static final long DEFAULT_INTERVAL_MILLIS = 100;
+    
+    private final long mTargetNanos;
+    private final long mIntervalNanos;
+    
+    private final AtomicLong mMinSojourn = new AtomicLong( Long.MAX_VALUE );
+    private final AtomicLong mIntervalEnd;
+    private volatile boolean mOverloaded;
+    private final AtomicLong mShedCount = new AtomicLong();
+    
+    /**
+     * Uses a 5ms target and a 100ms interval.
+     */
+    public CoDelLoadShedder()
+    {
+        this( DEFAULT_TARGET_MILLIS, DEFAULT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS );
+    }
+    
+    /**
+     * @param target
+     *            acceptable time to wait in the queue
+     * @param interval
+     *            how long the queue has to stay above the target before work
+     *            is shed. Should be about as long as a typical runnable takes.
+     * @param unit
+     *            of target and interval
+     */
+    public CoDelLoadShedder( long target, long interval, TimeUnit unit )
+    {
+        if ( target <= 0 || interval <= 0 )
+            throw new IllegalArgumentException( "target and interval must be positive" );
+        mTargetNanos = unit.toNanos( target );
+        mIntervalNanos = unit.toNanos( interval );
+        mIntervalEnd = new AtomicLong( System.nanoTime() + mIntervalNanos );
+    }
+    
+    /**
+     * Called each time a runnable is taken off the queue.
+     * 
+     * @param sojournNanos
+     *            time the runnable spent in the queue
+     * @param now
+     *            System.nanoTime()
+     * @return true if the runnable should be dropped
+     */
+    boolean shouldShed( long sojournNanos, long now )
+    {
+        for (;;)
+        {
+            long min = mMinSojourn.get();
+            if ( sojournNanos >= min || mMinSojourn.compareAndSet( min, sojournNanos ) )
+                break;
+        }
+        
+        long intervalEnd = mIntervalEnd.get();
+        if ( now - intervalEnd >= 0 && mIntervalEnd.compareAndSet( intervalEnd, now + mIntervalNanos ) )
+            mOverloaded = mMinSojourn.getAndSet( Long.MAX_VALUE ) > mTargetNanos;
+        
+        if ( mOverloaded && sojournNanos > 2 * mTargetNanos )
+        {
+            mShedCount.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+    
+    /**
+     * @return true if the last interval's smallest sojourn time was above the
+     *         target.
+     */
+    public boolean isOverloaded()
+    {
+        return mOverloaded;
+    }
+    
+    /**
+     * @return the number of runnables dropped so far.
+     */
+    public long getShedCount()
+    {
+        return mShedCount.get();
+    }
+}
@@ -0,0 +1,359 @@
+/*
+ * Copyright (c) 2008, Intelerad Medical Systems Incorporated
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Intelerad Medical Systems Incorporated nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY Intelerad Medical Systems Incorporated ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL Intelerad Medical Systems Incorporated BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.intelerad.tools.lib.concurrent;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+
+/**
+ * A pipeline of asynchronous steps. Each step runs directly on the thread that
+ * completed the step before it and only the final outcome goes through the
+ * Invoker given to call(), so a pipeline of n steps costs one hop to the event
+ * thread instead of n.
+ * 
+ * <pre>
+ * Continuation.from( loadCallable, executor )
+ *     .thenApply( parse )
+ *     .thenCompose( fetchDetails )
+ *     .handle( fallBackOnError )
+ *     .call( listener, Invoker.EVENT_THREAD_INVOKER );
+ * </pre>
+ * 
+ * A step started from an AsynchronousCallable completes on whatever thread
+ * that function calls back on; from( Callable, Executor ) completes on the
+ * executor's thread.
+ * <p>
+ * Cancelling the TaskController returned by call() cancels the step in
+ * progress and skips the steps after it.
+ * <p>
+ * Continuations are immutable, each call() runs the whole pipeline again.
+ */
+public abstract class Continuation
+{
+    /** Used by thenApply() */
+    public interface Function
+    {
+        public Object apply( Object result ) throws Exception;
+    }
+    
+    /** Used by thenCompose() */
+    public interface AsynchronousFunction
+    {
+        public AsynchronousCallable apply( Object result ) throws Exception;
+    }
+    
+    /** Used by handle() */
+    public interface Handler
+    {
+        /**
+         * @param result
+         *            the result of the previous step, null if it failed.
+         * @param exception
+         *            the exception of the previous step, null if it succeeded.
+         * @return the result of this step
+         */
+        public Object handle( Object result, Exception exception ) throws Exception;
+    }
+    
+    /**
+     * @param callable
+     * @return a pipeline whose first step is the given asynchronous function.
+     */
+    public static Continuation from( final AsynchronousCallable callable )
+    {
+        return new Continuation()
+        {
+            void start( CallListener sink, Chain chain )
+            {
+                int step = chain.nextStep();
+                chain.setCurrent( step, callable.call( sink ) );
+            }
+        };
+    }
+    
+    /**
+     * @param callable
+     * @param executor
+     * @return a pipeline whose first step calls the callable on the executor.
+     *         The next steps run on the executor's thread.
+     */
+    public static Continuation from( final Callable callable, final Executor executor )
+    {
+        return new Continuation()
+        {
+            void start( CallListener sink, Chain chain )
+            {
+                int step = chain.nextStep();
+                chain.setCurrent( step, CallableExecutor.execute( callable, sink, Invoker.SYNCHRONOUS_INVOKER, executor ) );
+            }
+        };
+    }
+    
+    Continuation()
+    {
+    }
+    
+    /**
+     * Starts the pipeline. The outcome is reported to the sink on the thread
+     * that completes the last step. Sinks ignore handleFinally(), the steps
+     * don't call it consistently.
+     */
+    abstract void start( CallListener sink, Chain chain );
+    
+    /**
+     * @return a pipeline that passes the result of this one through the
+     *         function. An exception thrown by the function fails the
+     *         pipeline.
+     */
+    public Continuation thenApply( final Function function )
+    {
+        final Continuation previous = this;
+        return new Continuation()
+        {
+            void start( final CallListener sink, final Chain chain )
+            {
+                previous.start( new CallListenerWrapper( sink )
+                {
+                    public void handleSuccess( Object result )
+                    {
+                        if ( chain.isCancelled() )
+                        {
+                            mListener.handleCancel();
+                            return;
+                        }
+                        
+                        Object applied;
+                        try
+                        {
+                            applied = function.apply( result );
+                        }
+                        catch ( Exception ex )
+                        {
+                            mListener.handleException( ex );
+                            return;
+                        }
+                        mListener.handleSuccess( applied );
+                    }
+                }, chain );
+            }
+        };
+    }
+    
+    /**
+     * @return a pipeline that calls the asynchronous function returned by the
+     *         given function with the result of this one.
+     */
+    public Continuation thenCompose( final AsynchronousFunction function )
+    {
+        final Continuation previous = this;
+        return new Continuation()
+        {
+            void start( final CallListener sink, final Chain chain )
+            {
+                previous.start( new CallListenerWrapper( sink )
+                {
+                    public void handleSuccess( Object result )
+                    {
+                        if ( chain.isCancelled() )
+                        {
+                            mListener.handleCancel();
+                            return;
+                        }
+                        
+                        AsynchronousCallable next;
+                        try
+                        {
+                            next = function.apply( result );
+                        }
+                        catch ( Exception ex )
+                        {
+                            mListener.handleException( ex );
+                            return;
+                        }
+                        int step = chain.nextStep();
+                        chain.setCurrent( step, next.call( mListener ) );
+                    }
+                }, chain );
+            }
+        };
+    }
+    
+    /**
+     * @return a pipeline that passes the result or the exception of this one
+     *         to the handler. Cancellation isn't handled, it goes straight
+     *         through.
+     */
+    public Continuation handle( final Handler handler )
+    {
+        final Continuation previous = this;
+        return new Continuation()
+        {
+            void start( final CallListener sink, final Chain chain )
+            {
+                previous.start( new CallListenerWrapper( sink )
+                {
+                    public void handleSuccess( Object result )
+                    {
+                        handle( result, null );
+                    }
+                    
+                    public void handleException( Exception exception )
+                    {
+                        handle( null, exception );
+                    }
+                    
+                    private void handle( Object result, Exception exception )
+                    {
+                        if ( chain.isCancelled() )
+                        {
+                            mListener.handleCancel();
+                            return;
+                        }
+                        
+                        Object handled;
+                        try
+                        {
+                            handled = handler.handle( result, exception );
+                        }
+                        catch ( Exception ex )
+                        {
+                            mListener.handleException( ex );
+                            return;
+                        }
+                        mListener.handleSuccess( handled );
+                    }
+                }, chain );
+            }
+        };
+    }
+    
+    /**
+     * Runs the pipeline.
+     * 
+     * @param listener
+     *            gets the outcome of the last step
+     * @param invoker
+     *            the listener is called back through (not the
+     *            SYNCHRONOUS_INVOKER)
+     * @return the TaskController for the whole pipeline.
+     */
+    public TaskController call( CallListener listener, Invoker invoker )
+    {
+        Chain chain = new Chain();
+        final BasicTaskController controller = new BasicTaskController( chain, listener, invoker );
+        start( new CallAdapter()
+        {
+            public void handleSuccess( Object result )
+            {
+                controller.setResult( result );
+            }
+            
+            public void handleException( Exception exception )
+            {
+                controller.setException( exception );
+            }
+            
+            public void handleCancel()
+            {
+                controller.cancel();
+            }
+        }, chain );
+        return controller;
+    }
+    
+    /**
+     * @param invoker
+     *            used to call back the CallListener given to call().
+     * @return the pipeline as an AsynchronousCallable.
+     */
+    public AsynchronousCallable toAsynchronousCallable( final Invoker invoker )
+    {
+        return new AsynchronousCallable()
+        {
+            public TaskController call( CallListener callListener )
+            {
+                return Continuation.this.call( callListener, invoker );
+            }
+        };
+    }
+    
+    /**
+     * Keeps track of the step in progress so cancelling a pipeline cancels
+     * it.
+     * <p>
+     * A step can finish before its call() returns and start the next one from
+     * its listener, so the controllers don't necessarily come in in order.
+     * Each step takes a number before it's called and a controller only
+     * replaces the one of an earlier step.
+     */
+    static final class Chain implements Cancellable
+    {
+        /* all guarded by this */
+        private boolean mCancelled;
+        private int mStepCount;
+        private int mCurrentStep = -1;
+        private TaskController mCurrent;
+        
+        /** Called just before a step is called */
+        synchronized int nextStep()
+        {
+            return mStepCount++;
+        }
+        
+        void setCurrent( int step, TaskController current )
+        {
+            synchronized ( this )
+            {
+                if ( step > mCurrentStep )
+                {
+                    mCurrentStep = step;
+                    mCurrent = current;
+                }
+                if ( !mCancelled )
+                    return;
+            }
+            current.cancel();
+        }
+        
+        synchronized boolean isCancelled()
+        {
+            return mCancelled;
+        }
+        
+        public void cancel()
+        {
+            TaskController current;
+            synchronized ( this )
+            {
+                mCancelled = true;
+                current = mCurrent;
+            }
+            if ( current != null )
+                current.cancel();
+        }
+    }
+}
@@ -0,0 +1,377 @@
+/*
+ * Copyright (c) 2008, Intelerad Medical Systems Incorporated
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Intelerad Medical Systems Incorporated nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY Intelerad Medical Systems Incorporated ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL Intelerad Medical Systems Incorporated BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.intelerad.tools.lib.concurrent;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Like BoundedExecutor, only allows a certain number of tasks to run at the
+ * same time, but queued tasks are started earliest deadline first instead of
+ * in FIFO order. A task whose deadline has passed by the time it would be
+ * started is dropped without being run: it is told through
+ * RejectableRunnable.rejected() with a DeadlineExceededException. This way
+ * work the caller has already given up on doesn't take a slot from work that
+ * can still be done in time.
+ * <p>
+ * Deadlines are absolute times in the System.currentTimeMillis() sense.
+ * Tasks with the same deadline are started in the order they were submitted.
+ * Runnables given to execute( Runnable ) have no deadline and run after all
+ * the tasks that have one.
+ * <p>
+ * Both Callables (through CallableUtilities) and AsynchronousCallables (through
+ * call()) can be run with a deadline. An AsynchronousCallable keeps its slot
+ * until it has finished.
+ * 
+ * @see CallableUtilities#execute(java.util.concurrent.Callable, CallListener, Invoker, DeadlineExecutor, long)
+ */
+public class DeadlineExecutor implements Executor
+{
+    public static final long NO_DEADLINE = Long.MAX_VALUE;
+    
+    private final int mConcurrency;
+    private final Executor mExecutor;
+    
+    /** Entries ordered by deadline */
+    private final PriorityQueue mQueue = new PriorityQueue();
+    private long mNextSequence;
+    private int mRunnableCount;
+    
+    public DeadlineExecutor( int concurrency, Executor executor )
+    {
+        if ( concurrency < 1 )
+            throw new IllegalArgumentException( "concurrency must be at least 1 - " + concurrency );
+        mConcurrency = concurrency;
+        mExecutor = executor;
+    }
+    
+    /**
+     * Runs the command with no deadline.
+     */
+    public void execute( Runnable command )
+    {
+        execute( command, NO_DEADLINE );
+    }
+    
+    /**
+     * @param command
+     *            to run. Should implement RejectableRunnable if it wants to know
+     *            when it's dropped.
+     * @param deadline
+     *            in milliseconds since the epoch
+     */
+    public void execute( Runnable command, long deadline )
+    {
+        if ( command == null )
+            throw new NullPointerException( "command" );
+        enqueue( new Entry( command, deadline, false ) );
+    }
+    
+    /**
+     * Starts the AsynchronousCallable when a slot is free and its turn comes.
+     * The slot is kept until the callable's handleFinally(). If the deadline
+     * passes first the listener gets a DeadlineExceededException through
+     * handleException().
+     * 
+     * @param callable
+     *            to call
+     * @param deadline
+     *            in milliseconds since the epoch
+     * @param listener
+     *            to callback (notify)
+     * @param invoker
+     *            to notify with
+     * @return a TaskController representing the asynchronous task
+     */
+    public TaskController call( AsynchronousCallable callable, long deadline, CallListener listener, Invoker invoker )
+    {
+        AsynchronousTask task = new AsynchronousTask( callable, listener, invoker );
+        task.mEntry = new Entry( task, deadline, true );
+        enqueue( task.mEntry );
+        return task.mTaskController;
+    }
+    
+    private void enqueue( Entry entry )
+    {
+        synchronized ( this )
+        {
+            entry.mSequence = mNextSequence++;
+            mQueue.add( entry );
+        }
+        startNewRunnables();
+    }
+    
+    private void startNewRunnables()
+    {
+        List expired = null;
+        for (;;)
+        {
+            Entry entry = null;
+            synchronized ( this )
+            {
+                long now = System.currentTimeMillis();
+                while ( mRunnableCount < mConcurrency && !mQueue.isEmpty() )
+                {
+                    Entry head = (Entry) mQueue.poll();
+                    if ( head.mDeadline < now )
+                    {
+                        if ( expired == null )
+                            expired = new ArrayList();
+                        expired.add( head );
+                        continue;
+                    }
+                    mRunnableCount++;
+                    entry = head;
+                    break;
+                }
+            }
+            if ( entry == null )
+                break;
+            dispatch( entry );
+        }
+        
+        if ( expired == null )
+            return;
+        for ( Iterator iterator = expired.iterator(); iterator.hasNext(); )
+        {
+            Entry entry = (Entry) iterator.next();
+            reject( entry.mRunnable, new DeadlineExceededException( "Deadline passed before the task could start" ) );
+        }
+    }
+    
+    private void dispatch( final Entry entry )
+    {
+        try
+        {
+            mExecutor.execute( new Runnable()
+            {
+                public void run()
+                {
+                    runEntry( entry );
+                }
+            } );
+        }
+        catch ( RejectedExecutionException ex )
+        {
+            synchronized ( this )
+            {
+                mRunnableCount--;
+            }
+            reject( entry.mRunnable, ex );
+        }
+    }
+    
+    private void runEntry( Entry entry )
+    {
+        if ( entry.mKeepsSlotUntilFinished )
+        {
+            entry.mRunnable.run();
+            return;
+        }
+        
+        try
+        {
+            entry.mRunnable.run();
+        }
+        finally
+        {
+            endRunnable();
+        }
+    }
+    
+    private void endRunnable()
+    {
+        synchronized ( this )
+        {
+            mRunnableCount--;
+        }
+        startNewRunnables();
+    }
+    
+    private synchronized boolean removeQueued( Entry entry )
+    {
+        return mQueue.remove( entry );
+    }
+    
+    /**
+     * @return the number of tasks waiting to start.
+     */
+    public synchronized int getQueueDepth()
+    {
+        return mQueue.size();
+    }
+    
+    private static void reject( Runnable runnable, RejectedExecutionException reason )
+    {
+        if ( !( runnable instanceof RejectableRunnable ) )
+            return;
+        try
+        {
+            ( (RejectableRunnable) runnable ).rejected( reason );
+        }
+        catch ( Throwable t )
+        {
+            ConcurrencyLogManager.getDefault().printException( "Unexpected exception in rejected()", t );
+        }
+    }
+    
+    private static final class Entry implements Comparable
+    {
+        private final Runnable mRunnable;
+        private final long mDeadline;
+        private final boolean mKeepsSlotUntilFinished;
+        private long mSequence;
+        
+        Entry( Runnable runnable, long deadline, boolean keepsSlotUntilFinished )
+        {
+            mRunnable = runnable;
+            mDeadline = deadline;
+            mKeepsSlotUntilFinished = keepsSlotUntilFinished;
+        }
+        
+        public int compareTo( Object object )
+        {
+            Entry other = (Entry) object;
+            if ( mDeadline != other.mDeadline )
+                return mDeadline < other.mDeadline ? -1 : 1;
+            if ( mSequence != other.mSequence )
+                return mSequence < other.mSequence ? -1 : 1;
+            return 0;
+        }
+    }
+    
+    /**
+     * Starts an AsynchronousCallable and forwards its result to a
+     * BasicTaskController. Gives back the slot in handleFinally().
+     */
+    private class AsynchronousTask implements RejectableRunnable
+    {
+        private final AsynchronousCallable mCallable;
+        private final BasicTaskController mTaskController;
+        private Entry mEntry;
+        
+        private boolean mStarted;
+        private TaskController mInnerTaskController;
+        
+        AsynchronousTask( AsynchronousCallable callable, CallListener listener, Invoker invoker )
+        {
+            mCallable = callable;
+            Cancellable cancellable = new Cancellable()
+            {
+                public void cancel()
+                {
+                    cancelTask();
+                }
+            };
+            mTaskController = new BasicTaskController( cancellable, listener, invoker );
+        }
+        
+        public void run()
+        {
+            boolean cancelled;
+            synchronized ( this )
+            {
+                cancelled = mTaskController.isCancelled();
+                mStarted = !cancelled;
+            }
+            if ( cancelled )
+            {
+                endRunnable();
+                return;
+            }
+            
+            CallListener innerListener = new CallAdapter()
+            {
+                public void handleSuccess( Object result )
+                {
+                    mTaskController.setResult( result );
+                }
+                
+                public void handleException( Exception exception )
+                {
+                    mTaskController.setException( exception );
+                }
+                
+                public void handleCancel()
+                {
+                    mTaskController.cancel();
+                }
+                
+                public void handleFinally()
+                {
+                    endRunnable();
+                }
+            };
+            
+            TaskController innerTaskController;
+            try
+            {
+                innerTaskController = mCallable.call( innerListener );
+            }
+            catch ( Throwable t )
+            {
+                mTaskController.setException( t );
+                endRunnable();
+                return;
+            }
+            
+            synchronized ( this )
+            {
+                mInnerTaskController = innerTaskController;
+            }
+            if ( mTaskController.isCancelled() )
+                innerTaskController.cancel();
+        }
+        
+        public void rejected( RejectedExecutionException reason )
+        {
+            mTaskController.setException( reason );
+        }
+        
+        private void cancelTask()
+        {
+            TaskController innerTaskController;
+            synchronized ( this )
+            {
+                if ( !mStarted )
+                {
+                    /* if it has already left the queue run() will see the cancel */
+                    removeQueued( mEntry );
+                    return;
+                }
+                innerTaskController = mInnerTaskController;
+            }
+            if ( innerTaskController != null )
+                innerTaskController.cancel();
+        }
+    }
+}
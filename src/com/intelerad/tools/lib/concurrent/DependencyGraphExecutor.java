@@ -0,0 +1,452 @@
+/*
+ * Copyright (c) 2008, Intelerad Medical Systems Incorporated
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Intelerad Medical Systems Incorporated nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY Intelerad Medical Systems Incorporated ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL Intelerad Medical Systems Incorporated BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.intelerad.tools.lib.concurrent;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Runs AsynchronousCallables that depend on each other's results. Each node
+ * is started as soon as all the nodes it depends on have succeeded, up to a
+ * concurrency limit, and is handed their results.
+ * <p>
+ * When more nodes are ready than can run, the one on the longest remaining
+ * path (by weight, 1 per node by default) goes first, so the critical path
+ * isn't held up by side branches.
+ * <p>
+ * Results are reported like AsynchronousCallableExecutor's, with the node's
+ * key as the context. When a node fails the nodes that depend on it, directly
+ * or not, are not started and are reported as a partial CancellationException;
+ * the rest of the graph carries on.
+ * <p>
+ * Add the nodes, in any order, then call start().
+ */
+public class DependencyGraphExecutor
+{
+    /**
+     * Pass this as the concurrency value to allow all the ready nodes to run
+     * at the same time
+     */
+    public static final int UNLIMITED = -1;
+    
+    /**
+     * A node's function, given the results of the nodes it depends on.
+     */
+    public static interface DependentCallable
+    {
+        /**
+         * @param parentResults
+         *            the key of each node this one depends on to its result.
+         * @param callListener
+         * @return a TaskController for the call.
+         */
+        public TaskController call( Map parentResults, CallListener callListener );
+    }
+    
+    /** Nodes by key, in the order they were added */
+    private final Map mNodes = new LinkedHashMap();
+    
+    /** Ready nodes, the longest remaining path first */
+    private final PriorityQueue mReady = new PriorityQueue( 11, new Comparator()
+    {
+        public int compare( Object o1, Object o2 )
+        {
+            Node node1 = (Node) o1;
+            Node node2 = (Node) o2;
+            if ( node1.mPathWeight != node2.mPathWeight )
+                return node1.mPathWeight > node2.mPathWeight ? -1 : 1;
+            return node1.mOrder - node2.mOrder;
+        }
+    } );
+    
+    /** Map CallListener to TaskController of the running nodes */
+    private final Map mCurrentTasks = new HashMap();
+    private final int mConcurrency;
+    
+    private final BasicCompositeTaskController mCompositeTaskController;
+    private boolean mStarted;
+    private boolean mFinished;
+    
+    /** Nodes that have succeeded, failed or were skipped */
+    private int mDoneCount;
+    
+    /**
+     * Starts what's ready after a node finishes. Goes through the Trampoline
+     * so nodes that finish synchronously inside call() don't recurse.
+     */
+    private final Runnable mStartNext = new Runnable()
+    {
+        public void run()
+        {
+            startReady();
+            checkForDone();
+        }
+    };
+    
+    /**
+     * @param listener
+     *            to notify, the contexts are the node keys.
+     * @param invoker
+     *            to use to notify
+     * @param concurrency
+     *            number of nodes allowed to run at the same time or UNLIMITED.
+     */
+    public DependencyGraphExecutor( CompositeCallListener listener, Invoker invoker, int concurrency )
+    {
+        mConcurrency = concurrency == UNLIMITED ? Integer.MAX_VALUE : concurrency;
+        mCompositeTaskController = new BasicCompositeTaskController( new Cancellable()
+        {
+            public void cancel()
+            {
+                cancelOutstanding();
+            }
+        }, listener, invoker );
+    }
+    
+    /**
+     * Adds a node that doesn't need its dependencies' results, only to run
+     * after them.
+     */
+    public void addNode( Object key, final AsynchronousCallable call, Object[] dependencies )
+    {
+        addNode( key, new DependentCallable()
+        {
+            public TaskController call( Map parentResults, CallListener callListener )
+            {
+                return call.call( callListener );
+            }
+        }, dependencies, 1 );
+    }
+    
+    /**
+     * @param key
+     *            identifies the node; it's the context of its result.
+     * @param call
+     * @param dependencies
+     *            keys of the nodes that must succeed before this one starts.
+     *            May be empty.
+     * @param weight
+     *            how long the node is expected to take, relative to the
+     *            others. Used to find the critical path.
+     */
+    public synchronized void addNode( Object key, DependentCallable call, Object[] dependencies, long weight )
+    {
+        if ( mStarted )
+            throw new IllegalStateException( "Nodes can't be added once started" );
+        if ( mNodes.containsKey( key ) )
+            throw new IllegalArgumentException( "There already is a node for " + key );
+        
+        mNodes.put( key, new Node( key, call, dependencies.clone(), weight, mNodes.size() ) );
+    }
+    
+    public TaskController getTaskController()
+    {
+        return mCompositeTaskController;
+    }
+    
+    /**
+     * Starts the nodes that don't depend on anything.
+     * 
+     * @throws IllegalStateException
+     *             if a dependency wasn't added or the dependencies form a
+     *             cycle. Nothing is started then.
+     */
+    public synchronized void start()
+    {
+        if ( mStarted )
+            throw new IllegalStateException( "Already started" );
+        mStarted = true;
+        
+        link();
+        
+        Trampoline.run( mStartNext );
+    }
+    
+    /**
+     * Links each node to its parents and children and works out the weight of
+     * the longest path from each node to the end.
+     */
+    private void link()
+    {
+        Node[] nodes = (Node[]) mNodes.values().toArray( new Node[ mNodes.size() ] );
+        for ( int i = 0; i < nodes.length; i++ )
+        {
+            Node node = nodes[ i ];
+            for ( int j = 0; j < node.mDependencies.length; j++ )
+            {
+                Node parent = (Node) mNodes.get( node.mDependencies[ j ] );
+                if ( parent == null )
+                    throw new IllegalStateException( node.mKey + " depends on " + node.mDependencies[ j ] + " which wasn't added" );
+                parent.mChildren.add( node );
+            }
+            node.mWaitingFor = node.mDependencies.length;
+        }
+        
+        /* Kahn's algorithm: order the nodes so that parents come before their children */
+        List order = new ArrayList( nodes.length );
+        int[] remaining = new int[ nodes.length ];
+        for ( int i = 0; i < nodes.length; i++ )
+        {
+            remaining[ i ] = nodes[ i ].mWaitingFor;
+            if ( remaining[ i ] == 0 )
+                order.add( nodes[ i ] );
+        }
+        for ( int i = 0; i < order.size(); i++ )
+        {
+            List children = ( (Node) order.get( i ) ).mChildren;
+            for ( int j = 0; j < children.size(); j++ )
+            {
+                Node child = (Node) children.get( j );
+                if ( --remaining[ child.mOrder ] == 0 )
+                    order.add( child );
+            }
+        }
+        if ( order.size() != nodes.length )
+            throw new IllegalStateException( "The dependencies form a cycle" );
+        
+        for ( int i = order.size() - 1; i >= 0; i-- )
+        {
+            Node node = (Node) order.get( i );
+            long longestChild = 0;
+            for ( int j = 0; j < node.mChildren.size(); j++ )
+                longestChild = Math.max( longestChild, ( (Node) node.mChildren.get( j ) ).mPathWeight );
+            node.mPathWeight = node.mWeight + longestChild;
+            node.mResultUsers = node.mChildren.size();
+            
+            if ( node.mWaitingFor == 0 )
+                mReady.add( node );
+        }
+    }
+    
+    private synchronized void startReady()
+    {
+        while ( mCurrentTasks.size() < mConcurrency && !mReady.isEmpty() )
+        {
+            if ( mCompositeTaskController.isCancelled() )
+                return;
+            startNode( (Node) mReady.poll() );
+        }
+    }
+    
+    private synchronized void startNode( final Node node )
+    {
+        Map parentResults = new HashMap();
+        for ( int i = 0; i < node.mDependencies.length; i++ )
+        {
+            Node parent = (Node) mNodes.get( node.mDependencies[ i ] );
+            parentResults.put( parent.mKey, parent.mResult );
+        }
+        releaseParentResults( node );
+        
+        CallListener callListener = new CallAdapter()
+        {
+            public void handleSuccess( Object result )
+            {
+                mCompositeTaskController.addPartialSuccess( result, node.mKey );
+                nodeSucceeded( node, result );
+            }
+            
+            public void handleException( Exception ex )
+            {
+                mCompositeTaskController.addPartialException( ex, node.mKey );
+                nodeFailed( node );
+            }
+            
+            public void handleCancel()
+            {
+                /* cancelled on its own rather than with everything else */
+                if ( mCompositeTaskController.isCancelled() )
+                    return;
+                mCompositeTaskController.addPartialException( new CancellationException(), node.mKey );
+                nodeFailed( node );
+            }
+            
+            public void handleFinally()
+            {
+                nodeFinished( this );
+            }
+        };
+        
+        /*
+         * The node may finish before call() returns so it's in the map before
+         * and only stays there if it hasn't.
+         */
+        mCurrentTasks.put( callListener, null );
+        TaskController taskController;
+        try
+        {
+            taskController = node.mCall.call( parentResults, callListener );
+        }
+        catch ( RuntimeException ex )
+        {
+            mCurrentTasks.remove( callListener );
+            mCompositeTaskController.addPartialException( ex, node.mKey );
+            nodeFailed( node );
+            return;
+        }
+        if ( mCurrentTasks.containsKey( callListener ) )
+        {
+            mCurrentTasks.put( callListener, taskController );
+            if ( mCompositeTaskController.isCancelled() )
+                taskController.cancel(); // cancelled from inside call()
+        }
+    }
+    
+    private synchronized void nodeSucceeded( Node node, Object result )
+    {
+        mDoneCount++;
+        if ( node.mResultUsers > 0 )
+            node.mResult = result;
+        
+        for ( int i = 0; i < node.mChildren.size(); i++ )
+        {
+            Node child = (Node) node.mChildren.get( i );
+            if ( --child.mWaitingFor == 0 && !child.mSkipped )
+                mReady.add( child );
+        }
+    }
+    
+    /**
+     * Skips everything downstream of the failed node. The rest of the graph
+     * isn't affected.
+     */
+    private synchronized void nodeFailed( Node node )
+    {
+        mDoneCount++;
+        
+        List toSkip = new ArrayList( node.mChildren );
+        while ( !toSkip.isEmpty() )
+        {
+            Node child = (Node) toSkip.remove( toSkip.size() - 1 );
+            if ( child.mSkipped )
+                continue;
+            child.mSkipped = true;
+            mDoneCount++;
+            mCompositeTaskController.addPartialException( new CancellationException( "Not run since " + node.mKey + " failed" ),
+                                                          child.mKey );
+            releaseParentResults( child );
+            toSkip.addAll( child.mChildren );
+        }
+    }
+    
+    /**
+     * Called once per node, when it starts or is skipped. Lets go of a
+     * parent's result once every node that needs it has it or won't run.
+     */
+    private void releaseParentResults( Node node )
+    {
+        for ( int i = 0; i < node.mDependencies.length; i++ )
+        {
+            Node parent = (Node) mNodes.get( node.mDependencies[ i ] );
+            if ( --parent.mResultUsers == 0 )
+                parent.mResult = null;
+        }
+    }
+    
+    private synchronized void nodeFinished( CallListener listener )
+    {
+        mCurrentTasks.remove( listener );
+        
+        Trampoline.run( mStartNext );
+    }
+    
+    private synchronized void checkForDone()
+    {
+        if ( mFinished || mCurrentTasks.size() != 0 )
+            return;
+        
+        if ( mDoneCount < mNodes.size() && !mCompositeTaskController.isCancelled() )
+            return; // ready nodes will be started by a queued mStartNext
+        
+        mFinished = true;
+        mCompositeTaskController.finished();
+    }
+    
+    private synchronized void cancelOutstanding()
+    {
+        /* a cancelled node may call back right away and remove itself from mCurrentTasks */
+        Object[] taskControllers = mCurrentTasks.values().toArray();
+        for ( int i = 0; i < taskControllers.length; i++ )
+        {
+            TaskController taskController = (TaskController) taskControllers[ i ];
+            if ( taskController == null )
+                continue; // call() hasn't returned yet
+            try
+            {
+                taskController.cancel();
+            }
+            catch ( Throwable t )
+            {
+                ConcurrencyLogManager.getDefault().printException( "unexpected exception in cancel().", t );
+            }
+        }
+        
+        Trampoline.run( mStartNext );
+    }
+    
+    /**
+     * A node of the graph. Everything but the constructor parameters is
+     * guarded by the executor's lock.
+     */
+    private static class Node
+    {
+        final Object mKey;
+        final DependentCallable mCall;
+        final Object[] mDependencies;
+        final long mWeight;
+        final int mOrder;
+        
+        final List mChildren = new ArrayList();
+        
+        /** Weight of the longest path from this node to the end, itself included */
+        long mPathWeight;
+        
+        /** Parents that haven't succeeded yet */
+        int mWaitingFor;
+        
+        /** Set when a node upstream failed */
+        boolean mSkipped;
+        
+        /** Kept until every child has been started */
+        Object mResult;
+        int mResultUsers;
+        
+        Node( Object key, DependentCallable call, Object[] dependencies, long weight, int order )
+        {
+            mKey = key;
+            mCall = call;
+            mDependencies = dependencies;
+            mWeight = weight;
+            mOrder = order;
+        }
+    }
+}
@@ -0,0 +1,447 @@
+/*
+ * Copyright (c) 2008, Intelerad Medical Systems Incorporated
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Intelerad Medical Systems Incorporated nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY Intelerad Medical Systems Incorporated ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL Intelerad Medical Systems Incorporated BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.intelerad.tools.lib.concurrent;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A version of BoundedExecutor that shares the permits fairly between
+ * "lanes" (tenants, clients..) instead of running everything in FIFO order.
+ * Each lane has its own queue and a weight. Free permits go to the lanes in
+ * turn using deficit round robin: when a lane's turn comes up it may start as
+ * many runnables as its weight before the next lane gets a turn. A lane with
+ * weight 2 gets twice as many runnables started as a lane with weight 1 when
+ * both have work queued, and a lane that queues a lot of work can't hold up
+ * the others.
+ * <p>
+ * The queue depth and the time runnables waited are kept per lane (see
+ * getLaneStatistics()). Lanes are kept once created so their statistics
+ * survive them being empty; use removeLane() for lanes that won't be used
+ * again.
+ * <p>
+ * Unlike BoundedExecutor this class uses a lock because picking the next lane
+ * has to look at all of them.
+ * 
+ * @see BoundedExecutor
+ */
+public class FairBoundedExecutor implements Executor
+{
+    /** The lane used by execute( Runnable ) */
+    public static final Object DEFAULT_LANE = new Object() { public String toString() { return "DEFAULT_LANE"; } };
+    
+    private final int mConcurrency;
+    private final Executor mExecutor;
+    
+    /** lane key to Lane */
+    private final Map mLanes = new HashMap();
+    
+    /** Lanes with runnables queued, in round robin order. The first one has the turn. */
+    private final LinkedList mActiveLanes = new LinkedList();
+    private int mRunnableCount;
+    
+    /** Handed to mExecutor once per permit. Runs queued runnables. */
+    private final Runnable mWorker = new Runnable()
+    {
+        public void run()
+        {
+            runQueued();
+        }
+    };
+    
+    public FairBoundedExecutor( int concurrency, Executor executor )
+    {
+        if ( concurrency < 1 )
+            throw new IllegalArgumentException( "concurrency must be at least 1 - " + concurrency );
+        mConcurrency = concurrency;
+        mExecutor = executor;
+    }
+    
+    /**
+     * Runs the runnable in the DEFAULT_LANE.
+     */
+    public void execute( Runnable command )
+    {
+        execute( DEFAULT_LANE, command );
+    }
+    
+    /**
+     * Runs the runnable in the given lane using the lane's current weight (1
+     * for a new lane).
+     */
+    public void execute( Object lane, Runnable command )
+    {
+        enqueue( lane, 0, command );
+    }
+    
+    /**
+     * Runs the runnable in the given lane and sets the lane's weight.
+     * 
+     * @param lane
+     *            key of the lane (tenant). Anything with a proper equals() and
+     *            hashCode().
+     * @param weight
+     *            share of the permits this lane gets compared to the other
+     *            lanes. Must be at least 1.
+     * @param command
+     *            to run
+     */
+    public void execute( Object lane, int weight, Runnable command )
+    {
+        if ( weight < 1 )
+            throw new IllegalArgumentException( "weight must be at least 1 - " + weight );
+        enqueue( lane, weight, command );
+    }
+    
+    private void enqueue( Object laneKey, int weight, Runnable command )
+    {
+        if ( laneKey == null || command == null )
+            throw new NullPointerException( "lane and command can't be null" );
+        
+        Lane lane;
+        QueuedRunnable queued = new QueuedRunnable( command, System.nanoTime() );
+        synchronized ( this )
+        {
+            lane = (Lane) mLanes.get( laneKey );
+            if ( lane == null )
+            {
+                lane = new Lane( laneKey );
+                mLanes.put( laneKey, lane );
+            }
+            if ( weight > 0 )
+                lane.mWeight = weight;
+            
+            if ( lane.mQueue.isEmpty() )
+                mActiveLanes.addLast( lane );
+            lane.mQueue.addLast( queued );
+            
+            if ( mRunnableCount >= mConcurrency )
+                return;
+            mRunnableCount++;
+        }
+        
+        try
+        {
+            mExecutor.execute( mWorker );
+        }
+        catch ( RuntimeException ex )
+        {
+            /*
+             * The caller is told the command was rejected (and may tell the
+             * command through rejected()) so it must not run later. If a
+             * worker already took it, it runs and the failure isn't ours to
+             * report.
+             */
+            synchronized ( this )
+            {
+                mRunnableCount--;
+                if ( !lane.mQueue.remove( queued ) )
+                    return;
+                if ( lane.mQueue.isEmpty() )
+                {
+                    mActiveLanes.remove( lane );
+                    lane.mDeficit = 0;
+                }
+            }
+            throw ex;
+        }
+    }
+    
+    /**
+     * Takes the next runnable using deficit round robin or gives back the
+     * permit if nothing is queued. Must be called with the lock held.
+     */
+    private Runnable dequeue()
+    {
+        if ( mActiveLanes.isEmpty() )
+        {
+            mRunnableCount--;
+            return null;
+        }
+        
+        Lane lane = (Lane) mActiveLanes.getFirst();
+        if ( lane.mDeficit <= 0 )
+            lane.mDeficit = lane.mWeight; // start of the lane's turn
+        
+        QueuedRunnable queued = (QueuedRunnable) lane.mQueue.removeFirst();
+        lane.mDeficit--;
+        
+        long waitTime = System.nanoTime() - queued.mEnqueueTime;
+        lane.mStartedCount++;
+        lane.mTotalWaitTime += waitTime;
+        if ( waitTime > lane.mMaximumWaitTime )
+            lane.mMaximumWaitTime = waitTime;
+        
+        if ( lane.mQueue.isEmpty() )
+        {
+            mActiveLanes.removeFirst();
+            lane.mDeficit = 0;
+        }
+        else if ( lane.mDeficit <= 0 )
+        {
+            mActiveLanes.addLast( mActiveLanes.removeFirst() );
+        }
+        return queued.mRunnable;
+    }
+    
+    private void runQueued()
+    {
+        for (;;)
+        {
+            Runnable toRun;
+            synchronized ( this )
+            {
+                toRun = dequeue();
+            }
+            if ( toRun == null )
+                return;
+            
+            boolean finished = false;
+            try
+            {
+                toRun.run();
+                finished = true;
+            }
+            finally
+            {
+                if ( !finished )
+                    endRunnable();
+            }
+        }
+    }
+    
+    /**
+     * Gives back the permit of a runnable that threw and starts a new worker
+     * if there is work queued.
+     */
+    private void endRunnable()
+    {
+        synchronized ( this )
+        {
+            if ( mActiveLanes.isEmpty() )
+            {
+                mRunnableCount--;
+                return;
+            }
+        }
+        
+        try
+        {
+            mExecutor.execute( mWorker );
+        }
+        catch ( RejectedExecutionException ex )
+        {
+            rejectQueuedIfNoWorker( ex );
+        }
+        catch ( RuntimeException ex )
+        {
+            ConcurrencyLogManager.getDefault().printException( "Could not restart a worker", ex );
+            rejectQueuedIfNoWorker( new RejectedExecutionException( ex ) );
+        }
+    }
+    
+    /**
+     * Gives back the permit of a worker that couldn't be restarted. If no
+     * other worker is left to run what's queued, it's all rejected rather
+     * than left waiting for the next execute().
+     */
+    private void rejectQueuedIfNoWorker( RejectedExecutionException reason )
+    {
+        List rejected = new ArrayList();
+        synchronized ( this )
+        {
+            mRunnableCount--;
+            if ( mRunnableCount > 0 )
+                return;
+            
+            while ( !mActiveLanes.isEmpty() )
+            {
+                Lane lane = (Lane) mActiveLanes.removeFirst();
+                lane.mDeficit = 0;
+                while ( !lane.mQueue.isEmpty() )
+                    rejected.add( ( (QueuedRunnable) lane.mQueue.removeFirst() ).mRunnable );
+            }
+        }
+        
+        for ( int i = 0; i < rejected.size(); i++ )
+        {
+            Object runnable = rejected.get( i );
+            if ( !( runnable instanceof RejectableRunnable ) )
+                continue;
+            try
+            {
+                ( (RejectableRunnable) runnable ).rejected( reason );
+            }
+            catch ( Throwable t )
+            {
+                ConcurrencyLogManager.getDefault().printException( "Unexpected exception in rejected()", t );
+            }
+        }
+    }
+    
+    /**
+     * Forgets a lane that has nothing queued. Returns false (and does nothing)
+     * if the lane still has work queued.
+     */
+    public synchronized boolean removeLane( Object laneKey )
+    {
+        Lane lane = (Lane) mLanes.get( laneKey );
+        if ( lane == null )
+            return true;
+        if ( !lane.mQueue.isEmpty() )
+            return false;
+        mLanes.remove( laneKey );
+        return true;
+    }
+    
+    /**
+     * @return the keys of all known lanes.
+     */
+    public synchronized List getLanes()
+    {
+        return new ArrayList( mLanes.keySet() );
+    }
+    
+    /**
+     * @return a snapshot of the statistics for a lane or null if the lane is
+     *         not known.
+     */
+    public synchronized LaneStatistics getLaneStatistics( Object laneKey )
+    {
+        Lane lane = (Lane) mLanes.get( laneKey );
+        if ( lane == null )
+            return null;
+        return new LaneStatistics( lane.mWeight,
+                                   lane.mQueue.size(),
+                                   lane.mStartedCount,
+                                   lane.mTotalWaitTime,
+                                   lane.mMaximumWaitTime );
+    }
+    
+    /**
+     * @return the number of runnables currently running.
+     */
+    public synchronized int getRunningCount()
+    {
+        return mRunnableCount;
+    }
+    
+    /**
+     * Statistics of one lane at the time getLaneStatistics() was called.
+     * <p>
+     * Immutable
+     */
+    public static final class LaneStatistics
+    {
+        private final int mWeight;
+        private final int mQueueDepth;
+        private final long mStartedCount;
+        private final long mTotalWaitTime;
+        private final long mMaximumWaitTime;
+        
+        private LaneStatistics( int weight, int queueDepth, long startedCount, long totalWaitTime, long maximumWaitTime )
+        {
+            mWeight = weight;
+            mQueueDepth = queueDepth;
+            mStartedCount = startedCount;
+            mTotalWaitTime = totalWaitTime;
+            mMaximumWaitTime = maximumWaitTime;
+        }
+        
+        public int getWeight()
+        {
+            return mWeight;
+        }
+        
+        /** @return number of runnables waiting to run */
+        public int getQueueDepth()
+        {
+            return mQueueDepth;
+        }
+        
+        /** @return number of runnables that have been started */
+        public long getStartedCount()
+        {
+            return mStartedCount;
+        }
+        
+        /** @return average time the started runnables waited in the queue */
+        public long getAverageWaitTime( TimeUnit unit )
+        {
+            if ( mStartedCount == 0 )
+                return 0;
+            return unit.convert( mTotalWaitTime / mStartedCount, TimeUnit.NANOSECONDS );
+        }
+        
+        /** @return longest time a started runnable waited in the queue */
+        public long getMaximumWaitTime( TimeUnit unit )
+        {
+            return unit.convert( mMaximumWaitTime, TimeUnit.NANOSECONDS );
+        }
+    }
+    
+    private static final class Lane
+    {
+        private final Object mKey;
+        private final LinkedList mQueue = new LinkedList();
+        private int mWeight = 1;
+        private int mDeficit;
+        
+        private long mStartedCount;
+        private long mTotalWaitTime;
+        private long mMaximumWaitTime;
+        
+        Lane( Object key )
+        {
+            mKey = key;
+        }
+        
+        public String toString()
+        {
+            return "Lane " + mKey;
+        }
+    }
+    
+    private static final class QueuedRunnable
+    {
+        private final Runnable mRunnable;
+        private final long mEnqueueTime;
+        
+        QueuedRunnable( Runnable runnable, long enqueueTime )
+        {
+            mRunnable = runnable;
+            mEnqueueTime = enqueueTime;
+        }
+    }
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright (c) 2008, Intelerad Medical Systems Incorporated
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Intelerad Medical Systems Incorporated nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY Intelerad Medical Systems Incorporated ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL Intelerad Medical Systems Incorporated BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.intelerad.tools.lib.concurrent;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * A timer for lots of timeouts that mostly get cancelled. Timeouts are hashed
+ * into the buckets of a wheel that a single thread advances one bucket per
+ * tick, so scheduling and cancelling are O(1) no matter how many timeouts are
+ * pending. The price is precision: a timeout fires up to one tick late.
+ * <p>
+ * Tasks run on the timer thread so they must be quick (cancelling a
+ * TaskController for example). Use an Executor for anything more.
+ * <p>
+ * Use getDefault() rather than making a timer per use; each timer has its
+ * own thread.
+ */
+public final class HashedWheelTimer
+{
+    private static final long DEFAULT_TICK_MILLIS = 10;
+    private static final int DEFAULT_TICKS_PER_WHEEL = 512;
+    
+    /** At most this many new timeouts are put on the wheel per tick so a flood can't stall expiry */
+    private static final int MAX_TRANSFERS_PER_TICK = 100000;
+    
+    private static final AtomicIntegerFieldUpdater mStateUpdater =
+        AtomicIntegerFieldUpdater.newUpdater( Timeout.class, "mState" );
+    
+    private static HashedWheelTimer mDefault;
+    private static int mThreadCount;
+    
+    /**
+     * @return the timer shared by the library (10ms ticks).
+     */
+    public static synchronized HashedWheelTimer getDefault()
+    {
+        if ( mDefault == null )
+            mDefault = new HashedWheelTimer( DEFAULT_TICK_MILLIS, TimeUnit.MILLISECONDS, DEFAULT_TICKS_PER_WHEEL );
+        return mDefault;
+    }
+    
+    private static synchronized int nextThreadNumber()
+    {
+        return ++mThreadCount;
+    }
+    
+    private final long mTickNanos;
+    private final Bucket[] mWheel;
+    private final int mMask;
+    
+    private final Queue mNewTimeouts = new ConcurrentLinkedQueue();
+    private final Queue mCancelledTimeouts = new ConcurrentLinkedQueue();
+    
+    private Thread mThread;
+    private volatile boolean mStopped;
+    
+    /** Set when the thread starts; deadlines are relative to it */
+    private volatile long mStartTime;
+    
+    /**
+     * @param tickDuration
+     *            how often the wheel is advanced (the precision of the timer).
+     * @param unit
+     * @param ticksPerWheel
+     *            the number of buckets, rounded up to a power of two.
+     */
+    public HashedWheelTimer( long tickDuration, TimeUnit unit, int ticksPerWheel )
+    {
+        if ( tickDuration <= 0 )
+            throw new IllegalArgumentException( "tickDuration must be greater than zero: " + tickDuration );
+        if ( ticksPerWheel <= 0 || ticksPerWheel > ( 1 << 30 ) )
+            throw new IllegalArgumentException( "ticksPerWheel out of range: " + ticksPerWheel );
+        
+        int size = 1;
+        while ( size < ticksPerWheel )
+            size <<= 1;
+        
+        mTickNanos = unit.toNanos( tickDuration );
+        mWheel = new Bucket[ size ];
+        for ( int i = 0; i < size; i++ )
+            mWheel[ i ] = new Bucket();
+        mMask = size - 1;
+    }
+    
+    /**
+     * Runs the task on the timer thread after the given delay.
+     * 
+     * @param task
+     * @param delay
+     * @param unit
+     * @return a Cancellable that stops the task from running if it hasn't yet.
+     * @throws IllegalStateException if the timer was stopped.
+     */
+    public Cancellable schedule( Runnable task, long delay, TimeUnit unit )
+    {
+        if ( mStopped )
+            throw new IllegalStateException( "The timer has been stopped" );
+        
+        start();
+        long deadline = System.nanoTime() + unit.toNanos( Math.max( delay, 0 ) ) - mStartTime;
+        Timeout timeout = new Timeout( task, deadline );
+        mNewTimeouts.add( timeout );
+        return timeout;
+    }
+    
+    /**
+     * Stops the timer thread. Pending timeouts never run. Don't stop the
+     * default timer.
+     */
+    public synchronized void stop()
+    {
+        mStopped = true;
+        if ( mThread != null )
+            mThread.interrupt();
+    }
+    
+    private synchronized void start()
+    {
+        if ( mThread != null )
+            return;
+        
+        mStartTime = System.nanoTime();
+        mThread = new Thread( new Worker(), "HashedWheelTimer-" + nextThreadNumber() );
+        mThread.setDaemon( true );
+        mThread.start();
+    }
+    
+    private final class Worker implements Runnable
+    {
+        private long mTick;
+        
+        public void run()
+        {
+            while ( !mStopped )
+            {
+                if ( !waitForNextTick() )
+                    return;
+                
+                removeCancelled();
+                transferNewTimeouts();
+                mWheel[ (int) ( mTick & mMask ) ].expire();
+                mTick++;
+            }
+        }
+        
+        /**
+         * @return false if the timer was stopped.
+         */
+        private boolean waitForNextTick()
+        {
+            long deadline = mTickNanos * ( mTick + 1 );
+            for (;;)
+            {
+                long now = System.nanoTime() - mStartTime;
+                long sleepMillis = ( deadline - now + 999999 ) / 1000000;
+                if ( sleepMillis <= 0 )
+                    return true;
+                
+                try
+                {
+                    Thread.sleep( sleepMillis );
+                }
+                catch ( InterruptedException ex )
+                {
+                    if ( mStopped )
+                        return false;
+                }
+            }
+        }
+        
+        private void removeCancelled()
+        {
+            Timeout timeout;
+            while ( ( timeout = (Timeout) mCancelledTimeouts.poll() ) != null )
+            {
+                if ( timeout.mBucket != null )
+                    timeout.mBucket.remove( timeout );
+            }
+        }
+        
+        private void transferNewTimeouts()
+        {
+            for ( int i = 0; i < MAX_TRANSFERS_PER_TICK; i++ )
+            {
+                Timeout timeout = (Timeout) mNewTimeouts.poll();
+                if ( timeout == null )
+                    return;
+                if ( timeout.mState == Timeout.CANCELLED )
+                    continue;
+                
+                long ticks = timeout.mDeadline / mTickNanos;
+                timeout.mRemainingRounds = ( ticks - mTick ) / mWheel.length;
+                
+                /* a deadline that has already passed goes in the current bucket */
+                long tick = Math.max( ticks, mTick );
+                mWheel[ (int) ( tick & mMask ) ].add( timeout );
+            }
+        }
+    }
+    
+    /**
+     * A doubly linked list of timeouts, only touched by the timer thread.
+     */
+    private static final class Bucket
+    {
+        private Timeout mHead;
+        private Timeout mTail;
+        
+        void add( Timeout timeout )
+        {
+            timeout.mBucket = this;
+            if ( mHead == null )
+            {
+                mHead = mTail = timeout;
+            }
+            else
+            {
+                mTail.mNext = timeout;
+                timeout.mPrev = mTail;
+                mTail = timeout;
+            }
+        }
+        
+        void expire()
+        {
+            Timeout timeout = mHead;
+            while ( timeout != null )
+            {
+                Timeout next = timeout.mNext;
+                if ( timeout.mRemainingRounds <= 0 )
+                {
+                    remove( timeout );
+                    timeout.expire();
+                }
+                else if ( timeout.mState == Timeout.CANCELLED )
+                {
+                    remove( timeout );
+                }
+                else
+                {
+                    timeout.mRemainingRounds--;
+                }
+                timeout = next;
+            }
+        }
+        
+        void remove( Timeout timeout )
+        {
+            if ( timeout.mPrev != null )
+                timeout.mPrev.mNext = timeout.mNext;
+            else
+                mHead = timeout.mNext;
+            
+            if ( timeout.mNext != null )
+                timeout.mNext.mPrev = timeout.mPrev;
+            else
+                mTail = timeout.mPrev;
+            
+            timeout.mPrev = null;
+            timeout.mNext = null;
+            timeout.mBucket = null;
+        }
+    }
+    
+    private final class Timeout implements Cancellable
+    {
+        static final int PENDING = 0;
+        static final int CANCELLED = 1;
+        static final int EXPIRED = 2;
+        
+        private final Runnable mTask;
+        private final long mDeadline;
+        
+        /* not private, the updater can't see private fields of a nested class */
+        volatile int mState;
+        
+        /* only touched by the timer thread */
+        long mRemainingRounds;
+        Bucket mBucket;
+        Timeout mPrev;
+        Timeout mNext;
+        
+        Timeout( Runnable task, long deadline )
+        {
+            mTask = task;
+            mDeadline = deadline;
+        }
+        
+        public void cancel()
+        {
+            if ( mStateUpdater.compareAndSet( this, PENDING, CANCELLED ) )
+                mCancelledTimeouts.add( this );
+        }
+        
+        void expire()
+        {
+            if ( !mStateUpdater.compareAndSet( this, PENDING, EXPIRED ) )
+                return;
+            
+            try
+            {
+                mTask.run();
+            }
+            catch ( Throwable t )
+            {
+                ConcurrencyLogManager.getDefault().printException( "Uncaught exception in timer task", t );
+            }
+        }
+    }
+}
@@ -0,0 +1,450 @@
+/*
+ * Copyright (c) 2008, Intelerad Medical Systems Incorporated
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Intelerad Medical Systems Incorporated nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY Intelerad Medical Systems Incorporated ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL Intelerad Medical Systems Incorporated BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.intelerad.tools.lib.concurrent;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An AsynchronousCallable that calls the first of a set of equivalent
+ * functions (replicas) and, if it hasn't returned after a delay, calls the
+ * next one too, and so on. The first result wins and the others are
+ * cancelled through their TaskControllers. A replica that fails starts the
+ * next one right away; the call only fails if they all do.
+ * <p>
+ * The delay is either fixed or follows a percentile of how long the first
+ * replica takes (the 95th for example, so about 5% of the calls are hedged).
+ * The delays are kept by the shared HashedWheelTimer, and the replicas
+ * started when a delay is up are started through the given invoker, not on
+ * the timer thread.
+ * <p>
+ * The CallListener is called back on the thread (invoker) of the replica that
+ * decided the outcome.
+ */
+public class HedgedCallable implements AsynchronousCallable
+{
+    /** Samples kept to compute the percentile */
+    private static final int WINDOW_SIZE = 1024;
+    
+    /** The percentile is recomputed every this many samples (and the initial delay is used until then) */
+    private static final int RECOMPUTE_INTERVAL = 32;
+    
+    /**
+     * @return an AsynchronousCallable that calls backup if primary hasn't
+     *         returned after the given delay.
+     */
+    public static HedgedCallable hedged( AsynchronousCallable primary,
+                                         AsynchronousCallable backup,
+                                         Invoker invoker,
+                                         long delay,
+                                         TimeUnit unit )
+    {
+        return new HedgedCallable( new AsynchronousCallable[] { primary, backup }, invoker, delay, unit );
+    }
+    
+    private final AsynchronousCallable[] mReplicas;
+    private final Invoker mInvoker;
+    
+    /** 0 for a fixed delay */
+    private final double mPercentile;
+    private final long[] mLatencies;
+    private int mLatencyCount;
+    private volatile long mDelayNanos;
+    
+    private final AtomicLong mCallCount = new AtomicLong();
+    private final AtomicLong mHedgeCount = new AtomicLong();
+    private final AtomicLong mHedgeWinCount = new AtomicLong();
+    
+    /**
+     * Hedges after a fixed delay.
+     * 
+     * @param replicas
+     *            called in this order.
+     * @param invoker
+     *            replicas are started through it when a delay is up.
+     * @param delay
+     *            between the start of one replica and the next.
+     * @param unit
+     */
+    public HedgedCallable( AsynchronousCallable[] replicas, Invoker invoker, long delay, TimeUnit unit )
+    {
+        this( replicas, invoker, 0, delay, unit );
+    }
+    
+    /**
+     * Hedges after the given percentile of the first replica's latency.
+     * 
+     * @param replicas
+     *            called in this order.
+     * @param invoker
+     *            replicas are started through it when a delay is up.
+     * @param percentile
+     *            between 0 and 100 (exclusive), 95 for example.
+     * @param initialDelay
+     *            used until enough latencies have been seen.
+     * @param unit
+     */
+    public HedgedCallable( AsynchronousCallable[] replicas,
+                           Invoker invoker,
+                           double percentile,
+                           long initialDelay,
+                           TimeUnit unit )
+    {
+        if ( replicas.length == 0 )
+            throw new IllegalArgumentException( "There must be at least one replica" );
+        if ( percentile < 0 || percentile >= 100 )
+            throw new IllegalArgumentException( "percentile must be between 0 and 100 - " + percentile );
+        
+        mReplicas = replicas.clone();
+        mInvoker = invoker;
+        mPercentile = percentile;
+        mLatencies = percentile > 0 ? new long[ WINDOW_SIZE ] : null;
+        mDelayNanos = unit.toNanos( initialDelay );
+    }
+    
+    public TaskController call( CallListener callListener )
+    {
+        mCallCount.incrementAndGet();
+        HedgedCall call = new HedgedCall( callListener );
+        call.startNext();
+        return call;
+    }
+    
+    /** @return the number of calls made. */
+    public long getCallCount()
+    {
+        return mCallCount.get();
+    }
+    
+    /** @return the number of times a replica other than the first was called. */
+    public long getHedgeCount()
+    {
+        return mHedgeCount.get();
+    }
+    
+    /** @return the number of calls won by a replica other than the first. */
+    public long getHedgeWinCount()
+    {
+        return mHedgeWinCount.get();
+    }
+    
+    /** @return the delay used for new calls. */
+    public long getDelay( TimeUnit unit )
+    {
+        return unit.convert( mDelayNanos, TimeUnit.NANOSECONDS );
+    }
+    
+    /**
+     * Records how long the first replica took (or at least took, if it lost).
+     */
+    private void recordLatency( long nanos )
+    {
+        if ( mLatencies == null )
+            return;
+        
+        long[] sorted;
+        synchronized ( mLatencies )
+        {
+            mLatencies[ mLatencyCount % WINDOW_SIZE ] = nanos;
+            mLatencyCount++;
+            if ( mLatencyCount % RECOMPUTE_INTERVAL != 0 )
+                return;
+            sorted = new long[ Math.min( mLatencyCount, WINDOW_SIZE ) ];
+            System.arraycopy( mLatencies, 0, sorted, 0, sorted.length );
+        }
+        
+        Arrays.sort( sorted );
+        int index = (int) Math.ceil( mPercentile / 100 * sorted.length ) - 1;
+        mDelayNanos = sorted[ Math.max( index, 0 ) ];
+    }
+    
+    /**
+     * One call: the replicas started so far and who won. It's the
+     * TaskController returned to the caller.
+     */
+    private class HedgedCall implements TaskController
+    {
+        private final CallListener mListener;
+        private final long mStartTime = System.nanoTime();
+        
+        /** Completed with the outcome for get() */
+        private final TaskFuture mOutcome = new TaskFuture();
+        
+        /* guarded by this */
+        private final TaskController[] mControllers = new TaskController[ mReplicas.length ];
+        private int mStarted;
+        private int mFailed;
+        private boolean mCancelled;
+        private boolean mDecided;
+        private Cancellable mTimeout;
+        
+        /** Bumped by every start, so a timer scheduled before one is ignored */
+        private int mGeneration;
+        
+        private volatile boolean mFirstFinished;
+        
+        HedgedCall( CallListener listener )
+        {
+            mListener = listener;
+        }
+        
+        void startNext()
+        {
+            startNext( -1 );
+        }
+        
+        /**
+         * @param generation
+         *            the generation the timer was scheduled in, -1 if the
+         *            start doesn't come from the timer.
+         */
+        private void startNext( int generation )
+        {
+            int index;
+            int startGeneration;
+            Cancellable pendingTimeout;
+            synchronized ( this )
+            {
+                if ( generation >= 0 && generation != mGeneration )
+                    return; // something was started since this timer was scheduled
+                if ( mDecided || mCancelled || mStarted == mReplicas.length )
+                    return;
+                index = mStarted++;
+                startGeneration = ++mGeneration;
+                pendingTimeout = mTimeout;
+                mTimeout = null;
+            }
+            
+            /* started early because everything running failed: the delay starts over */
+            if ( pendingTimeout != null )
+                pendingTimeout.cancel();
+            
+            if ( index > 0 )
+                mHedgeCount.incrementAndGet();
+            
+            TaskController controller = mReplicas[ index ].call( new ReplicaListener( index ) );
+            
+            boolean cancel;
+            synchronized ( this )
+            {
+                mControllers[ index ] = controller;
+                cancel = mDecided || mCancelled;
+                if ( !cancel && mStarted < mReplicas.length && startGeneration == mGeneration )
+                    mTimeout = HashedWheelTimer.getDefault().schedule( new HedgeTimeout( startGeneration ),
+                                                                       mDelayNanos,
+                                                                       TimeUnit.NANOSECONDS );
+            }
+            if ( cancel )
+                controller.cancel(); // decided while call() was running
+        }
+        
+        /**
+         * @return true if the replica with the given index decides the
+         *         outcome, in which case the others are cancelled.
+         */
+        boolean decide( int index )
+        {
+            synchronized ( this )
+            {
+                if ( mDecided )
+                    return false;
+                mDecided = true;
+            }
+            cancelAll( index );
+            return true;
+        }
+        
+        /**
+         * @return true if the failed replica was the last hope (nothing else
+         *         is running or left to start).
+         */
+        boolean failed()
+        {
+            synchronized ( this )
+            {
+                if ( mDecided )
+                    return false;
+                mFailed++;
+                if ( mFailed < mStarted )
+                    return false; // others are still running
+                if ( mCancelled || mStarted == mReplicas.length )
+                    return true;
+            }
+            /* everyone that was started failed but there are more: don't wait for the delay */
+            startNext();
+            return false;
+        }
+        
+        private void cancelAll( int except )
+        {
+            TaskController[] controllers;
+            Cancellable timeout;
+            synchronized ( this )
+            {
+                controllers = mControllers.clone();
+                timeout = mTimeout;
+                mTimeout = null;
+            }
+            
+            if ( timeout != null )
+                timeout.cancel();
+            
+            for ( int i = 0; i < controllers.length; i++ )
+            {
+                if ( i == except || controllers[ i ] == null )
+                    continue;
+                if ( i == 0 && except > 0 && !mFirstFinished )
+                    recordLatency( System.nanoTime() - mStartTime ); // the first replica lost; it took at least this long
+                controllers[ i ].cancel();
+            }
+        }
+        
+        /////////////////// TaskController \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+        public void cancel()
+        {
+            synchronized ( this )
+            {
+                if ( mCancelled || mDecided )
+                    return;
+                mCancelled = true;
+            }
+            cancelAll( -1 );
+        }
+        
+        public Object get() throws ExecutionException, InterruptedException, CancellationException
+        {
+            return mOutcome.getTaskController().get();
+        }
+        
+        public Object get( long timeout, TimeUnit unit ) throws ExecutionException,
+                                                               InterruptedException,
+                                                               TimeoutException,
+                                                               CancellationException
+        {
+            return mOutcome.getTaskController().get( timeout, unit );
+        }
+        
+        public synchronized boolean isCancelled()
+        {
+            return mCancelled;
+        }
+        
+        public boolean isDone()
+        {
+            return mOutcome.isDone();
+        }
+        
+        /**
+         * Starts the next replica through the invoker when the delay is up,
+         * unless one was started since. The replica's call() may do real
+         * work so it doesn't run on the timer thread.
+         */
+        private class HedgeTimeout implements Runnable
+        {
+            private final int mScheduledGeneration;
+            
+            HedgeTimeout( int generation )
+            {
+                mScheduledGeneration = generation;
+            }
+            
+            /** Called by the timer */
+            public void run()
+            {
+                mInvoker.invoke( new Runnable()
+                {
+                    public void run()
+                    {
+                        startNext( mScheduledGeneration );
+                    }
+                } );
+            }
+        }
+        
+        /**
+         * Listens to one replica. Only the one that decides the outcome
+         * passes it on.
+         */
+        private class ReplicaListener implements CallListener
+        {
+            private final int mIndex;
+            private boolean mWinner;
+            
+            ReplicaListener( int index )
+            {
+                mIndex = index;
+            }
+            
+            public void handleSuccess( Object result )
+            {
+                if ( mIndex == 0 )
+                {
+                    mFirstFinished = true;
+                    recordLatency( System.nanoTime() - mStartTime );
+                }
+                
+                if ( !decide( mIndex ) )
+                    return;
+                mWinner = true;
+                if ( mIndex > 0 )
+                    mHedgeWinCount.incrementAndGet();
+                mOutcome.setResult( result );
+                mListener.handleSuccess( result );
+            }
+            
+            public void handleException( Exception exception )
+            {
+                if ( mIndex == 0 )
+                    mFirstFinished = true;
+                if ( !failed() || !decide( mIndex ) )
+                    return;
+                mWinner = true;
+                mOutcome.setException( exception );
+                mListener.handleException( exception );
+            }
+            
+            public void handleCancel()
+            {
+                /* cancelled by us as a loser, or the whole call was cancelled */
+                if ( !failed() || !decide( mIndex ) )
+                    return;
+                mWinner = true;
+                mOutcome.cancel( false );
+                mListener.handleCancel();
+            }
+            
+            public void handleFinally()
+            {
+                if ( mWinner )
+                    mListener.handleFinally();
+            }
+        }
+    }
+}
@@ -28,6 +28,7 @@
 package com.intelerad.tools.lib.concurrent;
 
 import java.awt.EventQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Invoker is used to decide which thread (and how) a runnable representing a
@@ -53,6 +54,21 @@ public interface Invoker
             EventQueue.invokeLater( runnable );
         }
     };
+    
+    /**
+     * Calls back on the AWT event thread, batched (see BatchingInvoker) so a
+     * burst of callbacks doesn't flood the event queue; a batch yields back to
+     * the event queue after 10ms.
+     * <p>
+     * Opt-in: callbacks run one after the other in a single event, so one that
+     * opens a modal dialog holds up the others until it's closed, and a batch
+     * that yields is queued behind events posted since. Use
+     * EVENT_THREAD_INVOKER for callbacks that need to be interleaved with
+     * other events.
+     */
+    public static final Invoker BATCHED_EVENT_THREAD_INVOKER = new BatchingInvoker( EVENT_THREAD_INVOKER,
+                                                                                    10,
+                                                                                    TimeUnit.MILLISECONDS );
 
     /**
      * Do not use with the BasicTaskController (or with anything that goes
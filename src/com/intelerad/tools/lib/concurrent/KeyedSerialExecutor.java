@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2008, Intelerad Medical Systems Incorporated
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Intelerad Medical Systems Incorporated nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY Intelerad Medical Systems Incorporated ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL Intelerad Medical Systems Incorporated BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.intelerad.tools.lib.concurrent;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs runnables that share a key one at a time in the order they were
+ * submitted, while runnables with different keys run in parallel (as much as
+ * the executor allows). For example, all the work for one study can be keyed
+ * on the study id so it's done in order without holding up other studies.
+ * <p>
+ * There is no lock shared between keys. Each key gets a small queue when its
+ * first runnable arrives and the queue is thrown away as soon as it is empty,
+ * so the number of keys ever used doesn't matter, only the number with work
+ * pending.
+ * <p>
+ * Each runnable is handed to the executor on its own, after the previous
+ * runnable with the same key has finished.
+ * 
+ * @see CallableUtilities#execute(java.util.concurrent.Callable, CallListener, Invoker, KeyedSerialExecutor, Object)
+ */
+public class KeyedSerialExecutor
+{
+    private final Executor mExecutor;
+    
+    /** key to SerialQueue, only for keys with runnables queued or running */
+    private final ConcurrentMap mQueues = new ConcurrentHashMap();
+    
+    public KeyedSerialExecutor( Executor executor )
+    {
+        mExecutor = executor;
+    }
+    
+    /**
+     * Runs the runnable after all runnables previously submitted with the same
+     * key have finished.
+     * 
+     * @param key
+     *            anything with a proper equals() and hashCode()
+     * @param runnable
+     *            to run
+     * @throws RejectedExecutionException
+     *             if the executor refused the runnable
+     */
+    public void execute( Object key, Runnable runnable )
+    {
+        if ( key == null || runnable == null )
+            throw new NullPointerException( "key and runnable can't be null" );
+        
+        for (;;)
+        {
+            SerialQueue queue = (SerialQueue) mQueues.get( key );
+            if ( queue == null )
+            {
+                SerialQueue newQueue = new SerialQueue( key );
+                queue = (SerialQueue) mQueues.putIfAbsent( key, newQueue );
+                if ( queue == null )
+                    queue = newQueue;
+            }
+            
+            if ( queue.add( runnable ) )
+                return;
+            
+            /* the queue emptied and was retired while we were looking at it */
+            mQueues.remove( key, queue );
+        }
+    }
+    
+    /**
+     * @param key
+     * @return an Executor that runs everything it's given using this key.
+     */
+    public Executor getExecutor( final Object key )
+    {
+        return new Executor()
+        {
+            public void execute( Runnable runnable )
+            {
+                KeyedSerialExecutor.this.execute( key, runnable );
+            }
+        };
+    }
+    
+    /**
+     * @return the number of keys that currently have runnables queued or
+     *         running.
+     */
+    public int getActiveKeyCount()
+    {
+        return mQueues.size();
+    }
+    
+    /**
+     * The runnables for one key. Once empty it is "retired": removed from
+     * mQueues and never used again.
+     * <p>
+     * It's rejectable so an executor that drops it (DISCARD_OLDEST, load
+     * shedding, an expired deadline) doesn't leave the key stuck with
+     * mRunning set: its runnables are rejected too and the key is freed.
+     */
+    private class SerialQueue implements RejectableRunnable
+    {
+        private final Object mKey;
+        private final LinkedList mRunnables = new LinkedList();
+        private boolean mRunning;
+        private boolean mRetired;
+        
+        SerialQueue( Object key )
+        {
+            mKey = key;
+        }
+        
+        /**
+         * @return false if this queue is retired and a new one must be used.
+         */
+        boolean add( Runnable runnable )
+        {
+            synchronized ( this )
+            {
+                if ( mRetired )
+                    return false;
+                mRunnables.addLast( runnable );
+                if ( mRunning )
+                    return true;
+                mRunning = true;
+            }
+            
+            try
+            {
+                mExecutor.execute( this );
+            }
+            catch ( RejectedExecutionException ex )
+            {
+                /*
+                 * Runnables added behind ours since we let go of the lock
+                 * would never run. They get rejected too.
+                 */
+                synchronized ( this )
+                {
+                    mRunnables.remove( runnable );
+                }
+                rejectAll( ex );
+                throw ex;
+            }
+            return true;
+        }
+        
+        public void run()
+        {
+            Runnable toRun;
+            synchronized ( this )
+            {
+                toRun = (Runnable) mRunnables.removeFirst();
+            }
+            
+            try
+            {
+                toRun.run();
+            }
+            finally
+            {
+                runNext();
+            }
+        }
+        
+        /**
+         * The executor dropped us instead of running the next runnable. The
+         * ones queued are dropped with the same reason rather than handed
+         * back to an executor that is shedding work.
+         */
+        public void rejected( RejectedExecutionException reason )
+        {
+            rejectAll( reason );
+        }
+        
+        private void runNext()
+        {
+            synchronized ( this )
+            {
+                if ( retireIfEmpty() )
+                    return;
+            }
+            
+            try
+            {
+                mExecutor.execute( this );
+            }
+            catch ( RejectedExecutionException ex )
+            {
+                rejectAll( ex );
+            }
+        }
+        
+        /**
+         * Must be called with the lock held.
+         * 
+         * @return true if the queue was empty and is now retired
+         */
+        private boolean retireIfEmpty()
+        {
+            if ( !mRunnables.isEmpty() )
+                return false;
+            mRunning = false;
+            mRetired = true;
+            mQueues.remove( mKey, this );
+            return true;
+        }
+        
+        private void rejectAll( RejectedExecutionException reason )
+        {
+            LinkedList rejected;
+            synchronized ( this )
+            {
+                rejected = new LinkedList( mRunnables );
+                mRunnables.clear();
+                retireIfEmpty();
+            }
+            
+            for ( Iterator iterator = rejected.iterator(); iterator.hasNext(); )
+            {
+                Object runnable = iterator.next();
+                if ( !( runnable instanceof RejectableRunnable ) )
+                    continue;
+                try
+                {
+                    ( (RejectableRunnable) runnable ).rejected( reason );
+                }
+                catch ( Throwable t )
+                {
+                    ConcurrencyLogManager.getDefault().printException( "Unexpected exception in rejected()", t );
+                }
+            }
+        }
+    }
+}
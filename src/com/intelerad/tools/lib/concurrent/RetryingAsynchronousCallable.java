@@ -0,0 +1,421 @@
+/*
+ * Copyright (c) 2008, Intelerad Medical Systems Incorporated
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Intelerad Medical Systems Incorporated nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY Intelerad Medical Systems Incorporated ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL Intelerad Medical Systems Incorporated BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.intelerad.tools.lib.concurrent;
+
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An AsynchronousCallable that calls another one again when it fails, up to a
+ * number of attempts. Between attempts it waits an exponential backoff with
+ * full jitter (a random delay between 0 and initialBackoff * 2^(attempts - 1),
+ * capped at maxBackoff). The wait is kept by the shared HashedWheelTimer, no
+ * thread sleeps, and the next attempt is started through the given invoker.
+ * <p>
+ * Cancelling the returned TaskController cancels the running attempt, or the
+ * pending retry if it's waiting. The CallListener only hears about the last
+ * attempt.
+ * <p>
+ * A RetryBudget can be shared by several of these to cap retries as a
+ * fraction of calls, so that retries don't pile onto a service that's already
+ * failing because it's overloaded.
+ */
+public class RetryingAsynchronousCallable implements AsynchronousCallable
+{
+    /**
+     * Decides if a failed attempt should be tried again.
+     */
+    public static interface RetryPredicate
+    {
+        /**
+         * @param exception
+         *            from the failed attempt.
+         * @param attempts
+         *            the number of attempts made so far, starting at 1.
+         * @return true to try again (if there are attempts left).
+         */
+        public boolean shouldRetry( Exception exception, int attempts );
+        
+        /** Retries everything but DeadlineExceededException. */
+        public static final RetryPredicate DEFAULT = new RetryPredicate()
+        {
+            public boolean shouldRetry( Exception exception, int attempts )
+            {
+                return !( exception instanceof DeadlineExceededException );
+            }
+        };
+    }
+    
+    /**
+     * Allows retries up to a fraction of the calls. Every call adds ratio to a
+     * balance that's capped at maxTokens, and every retry takes 1 out. When the
+     * balance is below 1 the failure is passed on instead of being retried.
+     * Starts full.
+     */
+    public static final class RetryBudget
+    {
+        private final double mRatio;
+        private final double mMaxTokens;
+        private double mTokens;
+        
+        /**
+         * @param ratio
+         *            retries allowed per call, 0.1 for example. With 0 only
+         *            the initial maxTokens retries are ever allowed.
+         * @param maxTokens
+         *            the most retries that can be saved up for a burst.
+         */
+        public RetryBudget( double ratio, int maxTokens )
+        {
+            if ( ratio < 0 || maxTokens < 1 )
+                throw new IllegalArgumentException( "ratio can't be negative and maxTokens must be at least 1" );
+            mRatio = ratio;
+            mMaxTokens = maxTokens;
+            mTokens = maxTokens;
+        }
+        
+        synchronized void deposit()
+        {
+            mTokens = Math.min( mTokens + mRatio, mMaxTokens );
+        }
+        
+        synchronized boolean tryWithdraw()
+        {
+            if ( mTokens < 1 )
+                return false;
+            mTokens--;
+            return true;
+        }
+    }
+    
+    private static final Random mRandom = new Random();
+    
+    private final AsynchronousCallable mCall;
+    private final Invoker mInvoker;
+    private final int mMaxAttempts;
+    private final long mInitialBackoffNanos;
+    private final long mMaxBackoffNanos;
+    
+    private volatile RetryPredicate mRetryPredicate = RetryPredicate.DEFAULT;
+    private volatile RetryBudget mRetryBudget;
+    
+    private final AtomicLong mRetryCount = new AtomicLong();
+    private final AtomicLong mRefusedRetryCount = new AtomicLong();
+    
+    /**
+     * @param call
+     *            the function to call, and call again.
+     * @param invoker
+     *            retries are started through it, and a cancel during a
+     *            backoff is passed on through it.
+     * @param maxAttempts
+     *            including the first one.
+     * @param initialBackoff
+     *            the most to wait before the first retry.
+     * @param maxBackoff
+     *            the most to wait before any retry.
+     * @param unit
+     */
+    public RetryingAsynchronousCallable( AsynchronousCallable call,
+                                         Invoker invoker,
+                                         int maxAttempts,
+                                         long initialBackoff,
+                                         long maxBackoff,
+                                         TimeUnit unit )
+    {
+        if ( maxAttempts < 1 )
+            throw new IllegalArgumentException( "maxAttempts must be at least 1 - " + maxAttempts );
+        mCall = call;
+        mInvoker = invoker;
+        mMaxAttempts = maxAttempts;
+        mInitialBackoffNanos = unit.toNanos( initialBackoff );
+        mMaxBackoffNanos = unit.toNanos( maxBackoff );
+    }
+    
+    /** Defaults to RetryPredicate.DEFAULT. */
+    public void setRetryPredicate( RetryPredicate retryPredicate )
+    {
+        mRetryPredicate = retryPredicate;
+    }
+    
+    /** Defaults to null, which means no budget. */
+    public void setRetryBudget( RetryBudget retryBudget )
+    {
+        mRetryBudget = retryBudget;
+    }
+    
+    /** @return the number of retries made. */
+    public long getRetryCount()
+    {
+        return mRetryCount.get();
+    }
+    
+    /** @return the number of retries the RetryBudget refused. */
+    public long getRefusedRetryCount()
+    {
+        return mRefusedRetryCount.get();
+    }
+    
+    public TaskController call( CallListener callListener )
+    {
+        RetryBudget budget = mRetryBudget;
+        if ( budget != null )
+            budget.deposit();
+        
+        RetryingCall call = new RetryingCall( callListener );
+        call.run();
+        return call;
+    }
+    
+    private boolean shouldRetry( Exception exception, int attempts )
+    {
+        if ( attempts >= mMaxAttempts || !mRetryPredicate.shouldRetry( exception, attempts ) )
+            return false;
+        
+        RetryBudget budget = mRetryBudget;
+        if ( budget != null && !budget.tryWithdraw() )
+        {
+            mRefusedRetryCount.incrementAndGet();
+            return false;
+        }
+        mRetryCount.incrementAndGet();
+        return true;
+    }
+    
+    private long backoffNanos( int attempts )
+    {
+        long ceiling = mInitialBackoffNanos << Math.min( attempts - 1, 62 );
+        if ( ceiling <= 0 || ceiling > mMaxBackoffNanos )
+            ceiling = mMaxBackoffNanos;
+        return (long) ( mRandom.nextDouble() * ceiling );
+    }
+    
+    /**
+     * One call, across its attempts. It's the TaskController returned to the
+     * caller, and the Runnable that starts an attempt.
+     */
+    private class RetryingCall implements TaskController, Runnable
+    {
+        private static final int RUNNING = 0;
+        private static final int WAITING = 1;
+        private static final int DONE = 2;
+        
+        private final CallListener mListener;
+        
+        /** Completed with the outcome for get() */
+        private final TaskFuture mOutcome = new TaskFuture();
+        
+        /* guarded by this */
+        private int mState = RUNNING;
+        private int mAttempts;
+        private boolean mCancelled;
+        private TaskController mTaskController;
+        private Cancellable mBackoff;
+        
+        RetryingCall( CallListener listener )
+        {
+            mListener = listener;
+        }
+        
+        /** Starts an attempt */
+        public void run()
+        {
+            synchronized ( this )
+            {
+                if ( mState == DONE )
+                    return; // cancelled during the backoff
+                mState = RUNNING;
+                mBackoff = null;
+                mAttempts++;
+            }
+            
+            TaskController taskController = mCall.call( new AttemptListener() );
+            
+            boolean cancelled;
+            synchronized ( this )
+            {
+                mTaskController = taskController;
+                cancelled = mCancelled;
+            }
+            if ( cancelled )
+                taskController.cancel();
+        }
+        
+        /** Called on the invoker thread once a failed attempt is finished */
+        void retry()
+        {
+            synchronized ( this )
+            {
+                if ( !mCancelled )
+                {
+                    mState = WAITING;
+                    mTaskController = null;
+                    mBackoff = HashedWheelTimer.getDefault().schedule( new Runnable()
+                    {
+                        public void run()
+                        {
+                            mInvoker.invoke( RetryingCall.this );
+                        }
+                    }, backoffNanos( mAttempts ), TimeUnit.NANOSECONDS );
+                    return;
+                }
+                mState = DONE;
+            }
+            deliverCancel();
+        }
+        
+        /** Called when the outcome of an attempt is passed on; cancel() does nothing after */
+        synchronized void done()
+        {
+            mState = DONE;
+        }
+        
+        void deliverCancel()
+        {
+            mOutcome.cancel( false );
+            try
+            {
+                mListener.handleCancel();
+            }
+            finally
+            {
+                mListener.handleFinally();
+            }
+        }
+        
+        /////////////////// TaskController \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+        public void cancel()
+        {
+            TaskController taskController;
+            Cancellable backoff;
+            synchronized ( this )
+            {
+                if ( mCancelled || mState == DONE )
+                    return;
+                mCancelled = true;
+                taskController = mTaskController;
+                backoff = mBackoff;
+                mBackoff = null;
+                if ( mState == WAITING )
+                    mState = DONE;
+            }
+            
+            if ( backoff != null )
+            {
+                backoff.cancel();
+                mInvoker.invoke( new Runnable()
+                {
+                    public void run()
+                    {
+                        deliverCancel();
+                    }
+                } );
+            }
+            else if ( taskController != null )
+            {
+                taskController.cancel();
+            }
+        }
+        
+        public Object get() throws ExecutionException, InterruptedException, CancellationException
+        {
+            return mOutcome.getTaskController().get();
+        }
+        
+        public Object get( long timeout, TimeUnit unit ) throws ExecutionException,
+                                                               InterruptedException,
+                                                               TimeoutException,
+                                                               CancellationException
+        {
+            return mOutcome.getTaskController().get( timeout, unit );
+        }
+        
+        public synchronized boolean isCancelled()
+        {
+            return mCancelled;
+        }
+        
+        public boolean isDone()
+        {
+            return mOutcome.isDone();
+        }
+        
+        /**
+         * Listens to one attempt. Passes everything on unless it's going to
+         * be retried.
+         */
+        private class AttemptListener implements CallListener
+        {
+            private boolean mRetrying;
+            
+            public void handleSuccess( Object result )
+            {
+                done();
+                mOutcome.setResult( result );
+                mListener.handleSuccess( result );
+            }
+            
+            public void handleException( Exception exception )
+            {
+                int attempts;
+                boolean cancelled;
+                synchronized ( RetryingCall.this )
+                {
+                    attempts = mAttempts;
+                    cancelled = mCancelled;
+                }
+                
+                if ( !cancelled && shouldRetry( exception, attempts ) )
+                {
+                    mRetrying = true;
+                    return;
+                }
+                done();
+                mOutcome.setException( exception );
+                mListener.handleException( exception );
+            }
+            
+            public void handleCancel()
+            {
+                done();
+                mOutcome.cancel( false );
+                mListener.handleCancel();
+            }
+            
+            public void handleFinally()
+            {
+                if ( mRetrying )
+                    retry();
+                else
+                    mListener.handleFinally();
+            }
+        }
+    }
+}
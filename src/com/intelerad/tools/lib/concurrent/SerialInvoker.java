@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2008, Intelerad Medical Systems Incorporated
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Intelerad Medical Systems Incorporated nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY Intelerad Medical Systems Incorporated ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL Intelerad Medical Systems Incorporated BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.intelerad.tools.lib.concurrent;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An Invoker that runs the runnables it's given one at a time, in order, on a
+ * shared Executor. It doesn't own a thread: while it has runnables queued it
+ * occupies one of the executor's threads, so thousands of components can
+ * each have their own serial callback context on a small pool. Unlike the
+ * SYNCHRONOUS_INVOKER it may be used with the BasicTaskController.
+ * <p>
+ * A runnable sees everything done by the runnables invoked before it, even if
+ * they ran on a different thread of the pool. To be fair to the other users
+ * of the executor, a batch that runs longer than 10ms hands the rest back to
+ * the executor.
+ * <p>
+ * If the executor rejects or drops the drain (it's a RejectableRunnable) the
+ * runnables queued at that point are dropped too, and those that are
+ * RejectableRunnables get rejected() called (see BatchingInvoker).
+ */
+public final class SerialInvoker implements Invoker
+{
+    private static final long DEFAULT_BUDGET_MILLIS = 10;
+    
+    private final BatchingInvoker mBatchingInvoker;
+    
+    /**
+     * @param executor
+     *            runs the batches.
+     */
+    public SerialInvoker( Executor executor )
+    {
+        this( executor, DEFAULT_BUDGET_MILLIS, TimeUnit.MILLISECONDS );
+    }
+    
+    /**
+     * @param executor
+     *            runs the batches.
+     * @param budget
+     *            how long a batch may run before it goes back to the executor.
+     * @param unit
+     */
+    public SerialInvoker( final Executor executor, long budget, TimeUnit unit )
+    {
+        Invoker executorInvoker = new Invoker()
+        {
+            public void invoke( Runnable runnable )
+            {
+                executor.execute( runnable );
+            }
+        };
+        mBatchingInvoker = new BatchingInvoker( executorInvoker, budget, unit );
+    }
+    
+    public void invoke( Runnable runnable )
+    {
+        mBatchingInvoker.invoke( runnable );
+    }
+}
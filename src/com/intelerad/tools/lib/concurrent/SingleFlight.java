@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2008, Intelerad Medical Systems Incorporated
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Intelerad Medical Systems Incorporated nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY Intelerad Medical Systems Incorporated ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL Intelerad Medical Systems Incorporated BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.intelerad.tools.lib.concurrent;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Coalesces identical calls. While a call for a key is in flight, calls for
+ * the same key don't start another one; they wait for the same result, which
+ * is passed to each CallListener through its own Invoker.
+ * <p>
+ * Each caller gets its own TaskController. Cancelling it only drops that
+ * caller; the shared call is cancelled when every caller has cancelled.
+ * <p>
+ * Only calls that overlap are coalesced: once the result is in, the next
+ * call for the key starts a new one. Nothing is cached.
+ */
+public class SingleFlight
+{
+    /** Map key to Flight, for the calls in flight. Also guards the Flights. */
+    private final Map mFlights = new HashMap();
+    
+    private long mCallCount;
+    private long mCoalescedCount;
+    
+    /**
+     * Calls call with a listener that passes its result on to every caller
+     * of the same key, unless a call for key is already in flight in which
+     * case it waits for that one.
+     * 
+     * @param key
+     *            identifies calls that have the same result (with equals()).
+     * @param call
+     *            only called if there's no call for key in flight.
+     * @param listener
+     *            to notify
+     * @param invoker
+     *            to use to notify
+     * @return a TaskController for this caller only.
+     */
+    public TaskController call( Object key, AsynchronousCallable call, CallListener listener, Invoker invoker )
+    {
+        Flight flight;
+        boolean start = false;
+        BasicTaskController waiter;
+        synchronized ( mFlights )
+        {
+            mCallCount++;
+            flight = (Flight) mFlights.get( key );
+            if ( flight == null )
+            {
+                flight = new Flight( key );
+                mFlights.put( key, flight );
+                start = true;
+            }
+            else
+            {
+                mCoalescedCount++;
+            }
+            waiter = flight.join( listener, invoker );
+        }
+        
+        if ( start )
+            flight.start( call );
+        return waiter;
+    }
+    
+    /** @return the number of calls made to call(). */
+    public long getCallCount()
+    {
+        synchronized ( mFlights )
+        {
+            return mCallCount;
+        }
+    }
+    
+    /** @return the number of calls that waited for one already in flight. */
+    public long getCoalescedCount()
+    {
+        synchronized ( mFlights )
+        {
+            return mCoalescedCount;
+        }
+    }
+    
+    /** @return the number of keys with a call in flight. */
+    public int getInFlightCount()
+    {
+        synchronized ( mFlights )
+        {
+            return mFlights.size();
+        }
+    }
+    
+    /**
+     * The shared call for a key. Listens to it and hands the outcome to each
+     * caller's BasicTaskController. All fields are guarded by mFlights.
+     */
+    private class Flight implements CallListener
+    {
+        private final Object mKey;
+        private final List mWaiters = new ArrayList();
+        
+        /** Callers that haven't cancelled */
+        private int mActiveCount;
+        
+        /** Set once the call has returned or every caller has cancelled */
+        private boolean mDone;
+        
+        private TaskController mTaskController;
+        
+        Flight( Object key )
+        {
+            mKey = key;
+        }
+        
+        BasicTaskController join( CallListener listener, Invoker invoker )
+        {
+            BasicTaskController waiter = new BasicTaskController( new Cancellable()
+            {
+                public void cancel()
+                {
+                    waiterCancelled();
+                }
+            }, listener, invoker );
+            mWaiters.add( waiter );
+            mActiveCount++;
+            return waiter;
+        }
+        
+        void start( AsynchronousCallable call )
+        {
+            TaskController taskController;
+            try
+            {
+                taskController = call.call( this );
+            }
+            catch ( RuntimeException ex )
+            {
+                handleException( ex );
+                return;
+            }
+            
+            boolean cancel;
+            synchronized ( mFlights )
+            {
+                mTaskController = taskController;
+                cancel = mActiveCount == 0; // everyone cancelled while call() was running
+            }
+            if ( cancel )
+                taskController.cancel();
+        }
+        
+        void waiterCancelled()
+        {
+            TaskController taskController;
+            synchronized ( mFlights )
+            {
+                if ( mDone || --mActiveCount > 0 )
+                    return;
+                
+                /* nobody wants the result anymore, later callers start a new call */
+                end();
+                taskController = mTaskController;
+            }
+            if ( taskController != null )
+                taskController.cancel();
+        }
+        
+        /**
+         * @return the callers, if the flight wasn't already over.
+         */
+        private BasicTaskController[] end()
+        {
+            synchronized ( mFlights )
+            {
+                if ( mDone )
+                    return new BasicTaskController[ 0 ];
+                mDone = true;
+                if ( mFlights.get( mKey ) == this )
+                    mFlights.remove( mKey );
+                
+                BasicTaskController[] waiters = (BasicTaskController[]) mWaiters.toArray( new BasicTaskController[ mWaiters.size() ] );
+                mWaiters.clear();
+                return waiters;
+            }
+        }
+        
+        /////////////////// CallListener \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+        public void handleSuccess( Object result )
+        {
+            BasicTaskController[] waiters = end();
+            for ( int i = 0; i < waiters.length; i++ )
+                waiters[ i ].setResult( result );
+        }
+        
+        public void handleException( Exception exception )
+        {
+            BasicTaskController[] waiters = end();
+            for ( int i = 0; i < waiters.length; i++ )
+                waiters[ i ].setException( exception );
+        }
+        
+        public void handleCancel()
+        {
+            /* cancelled on its own, or by waiterCancelled() in which case there's no one left */
+            BasicTaskController[] waiters = end();
+            for ( int i = 0; i < waiters.length; i++ )
+                waiters[ i ].cancel();
+        }
+        
+        public void handleFinally()
+        {
+        }
+    }
+}
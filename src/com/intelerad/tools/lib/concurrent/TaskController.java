@@ -28,6 +28,8 @@
 package com.intelerad.tools.lib.concurrent;
 
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 
 /**
@@ -53,6 +55,18 @@ public interface TaskController extends Cancellable
      * returned via a callback.
      */
     public Object get() throws ExecutionException, InterruptedException, CancellationException;
+    
+    /**
+     * Same as get() but gives up after waiting for the given time. If it
+     * times out the task is left alone: it isn't cancelled and it isn't
+     * "done" because of this call.
+     * 
+     * @throws TimeoutException if the wait timed out.
+     */
+    public Object get( long timeout, TimeUnit unit ) throws ExecutionException,
+                                                           InterruptedException,
+                                                           TimeoutException,
+                                                           CancellationException;
 
     /** Returns true if this task was cancelled before it completed normally. */
     public boolean isCancelled();
@@ -0,0 +1,428 @@
+/*
+ * Copyright (c) 2008, Intelerad Medical Systems Incorporated
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Intelerad Medical Systems Incorporated nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY Intelerad Medical Systems Incorporated ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL Intelerad Medical Systems Incorporated BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.intelerad.tools.lib.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A java.util.concurrent.Future that is completed by an asynchronous function
+ * rather than by a thread blocking on it. Other code can then either block in
+ * get() like with any Future or, better, register a CallListener with
+ * addListener() and not tie up a thread at all.
+ * <p>
+ * Cancellation goes both ways: cancelling the future cancels the task that
+ * completes it, and a task that reports handleCancel() cancels the future.
+ * <p>
+ * To go from an AsynchronousCallable to a Future:
+ * 
+ * <pre>
+ * TaskFuture future = TaskFuture.call( asynchronousCallable );
+ * </pre>
+ * 
+ * To go from something that completes later (a CompletionStage for example) to
+ * an AsynchronousCallable, create the future with the Cancellable that cancels
+ * the source, complete it from the source's callback and hand out
+ * toAsynchronousCallable():
+ * 
+ * <pre>
+ * final TaskFuture future = new TaskFuture( new Cancellable()
+ * {
+ *     public void cancel()
+ *     {
+ *         completableFuture.cancel( false );
+ *     }
+ * } );
+ * completableFuture.whenComplete( ( result, error ) -&gt; {
+ *     if ( error == null ) future.setResult( result ); else future.setException( error );
+ * } );
+ * return future.toAsynchronousCallable( Invoker.EVENT_THREAD_INVOKER );
+ * </pre>
+ * 
+ * Going the other way is a CallListener that completes the CompletableFuture,
+ * registered with addListener() and Invoker.SYNCHRONOUS_INVOKER.
+ */
+public class TaskFuture implements Future
+{
+    /**
+     * Calls the given asynchronous function and returns a Future for its
+     * result. Cancelling the Future cancels the call's TaskController.
+     * 
+     * @param callable
+     * @return a Future completed by the call.
+     */
+    public static TaskFuture call( AsynchronousCallable callable )
+    {
+        TaskFuture future = new TaskFuture();
+        future.setSource( callable.call( future.new SourceListener() ) );
+        return future;
+    }
+    
+    private Cancellable mSource;
+    
+    private boolean mDone;
+    private boolean mCancelled;
+    private Object mResult;
+    private Throwable mException;
+    
+    /** CallListeners waiting for the outcome; null once it has been delivered to them */
+    private List mListeners = new ArrayList( 2 );
+    
+    /**
+     * Makes a future that nothing cancels. It's completed by setResult(),
+     * setException() or cancel().
+     */
+    public TaskFuture()
+    {
+    }
+    
+    /**
+     * @param source
+     *            is cancelled when this future is cancelled before it's
+     *            completed.
+     */
+    public TaskFuture( Cancellable source )
+    {
+        mSource = source;
+    }
+    
+    private void setSource( Cancellable source )
+    {
+        synchronized ( this )
+        {
+            if ( !mCancelled )
+            {
+                mSource = source;
+                return;
+            }
+        }
+        source.cancel(); // cancelled before call() returned
+    }
+    
+    /**
+     * Completes this future.
+     * 
+     * @param result
+     * @return false if it was already completed or cancelled.
+     */
+    public boolean setResult( Object result )
+    {
+        return complete( result, null, false );
+    }
+    
+    /**
+     * Completes this future exceptionally. get() throws an ExecutionException
+     * wrapping the given exception and listeners get it through
+     * handleException() (wrapped in an ExecutionException if it's not an
+     * Exception).
+     * 
+     * @param exception
+     * @return false if it was already completed or cancelled.
+     */
+    public boolean setException( Throwable exception )
+    {
+        if ( exception == null )
+            throw new NullPointerException( "exception" );
+        return complete( null, exception, false );
+    }
+    
+    /**
+     * Cancels this future and whatever was going to complete it. Whether the
+     * task is interrupted is up to its TaskController or Cancellable so
+     * mayInterruptIfRunning is ignored.
+     * 
+     * @return false if it was already completed or cancelled.
+     */
+    public boolean cancel( boolean mayInterruptIfRunning )
+    {
+        Cancellable source;
+        synchronized ( this )
+        {
+            if ( mDone )
+                return false;
+            source = mSource;
+        }
+        
+        if ( !complete( null, null, true ) )
+            return false;
+        
+        if ( source != null )
+        {
+            try
+            {
+                source.cancel();
+            }
+            catch ( Throwable t )
+            {
+                ConcurrencyLogManager.getDefault().printException( "Unexpected exception while cancelling", t );
+            }
+        }
+        return true;
+    }
+    
+    private boolean complete( Object result, Throwable exception, boolean cancelled )
+    {
+        List listeners;
+        synchronized ( this )
+        {
+            if ( mDone )
+                return false;
+            mResult = result;
+            mException = exception;
+            mCancelled = cancelled;
+            mDone = true;
+            listeners = mListeners;
+            mListeners = null;
+            notifyAll();
+        }
+        
+        for ( int i = 0; i < listeners.size(); i++ )
+            ( (Delivery) listeners.get( i ) ).invoke();
+        return true;
+    }
+    
+    /**
+     * Registers a CallListener that's called back with the outcome through the
+     * given Invoker. If the future is already done the listener is invoked
+     * right away.
+     * <p>
+     * Since the future is completed by an asynchronous function the
+     * Invoker.SYNCHRONOUS_INVOKER may be used here to receive the outcome on
+     * the completing thread, but the listener is then called on the current
+     * thread if the future is already done.
+     * 
+     * @param listener
+     * @param invoker
+     */
+    public void addListener( CallListener listener, Invoker invoker )
+    {
+        Delivery delivery = new Delivery( listener, invoker );
+        synchronized ( this )
+        {
+            if ( !mDone )
+            {
+                mListeners.add( delivery );
+                return;
+            }
+        }
+        delivery.invoke();
+    }
+    
+    /**
+     * Returns an AsynchronousCallable whose call() delivers this future's
+     * outcome through the given Invoker. Cancelling the returned TaskController
+     * cancels this future.
+     * 
+     * @param invoker
+     *            used to call back the CallListener given to call().
+     * @return an AsynchronousCallable for this future.
+     */
+    public AsynchronousCallable toAsynchronousCallable( final Invoker invoker )
+    {
+        return new AsynchronousCallable()
+        {
+            public TaskController call( CallListener callListener )
+            {
+                addListener( callListener, invoker );
+                return getTaskController();
+            }
+        };
+    }
+    
+    /**
+     * @return a TaskController view of this future.
+     */
+    public TaskController getTaskController()
+    {
+        return new TaskController()
+        {
+            public void cancel()
+            {
+                TaskFuture.this.cancel( false );
+            }
+            
+            public Object get() throws ExecutionException, InterruptedException, CancellationException
+            {
+                try
+                {
+                    return TaskFuture.this.get();
+                }
+                catch ( java.util.concurrent.CancellationException ex )
+                {
+                    throw new CancellationException();
+                }
+            }
+            
+            public Object get( long timeout, TimeUnit unit ) throws ExecutionException,
+                                                                   InterruptedException,
+                                                                   TimeoutException,
+                                                                   CancellationException
+            {
+                try
+                {
+                    return TaskFuture.this.get( timeout, unit );
+                }
+                catch ( java.util.concurrent.CancellationException ex )
+                {
+                    throw new CancellationException();
+                }
+            }
+            
+            public boolean isCancelled()
+            {
+                return TaskFuture.this.isCancelled();
+            }
+            
+            public boolean isDone()
+            {
+                return TaskFuture.this.isDone();
+            }
+        };
+    }
+    
+    ////////////////////////// Future \\\\\\\\\\\\\\\\\\\\\\\\\\\\
+    public synchronized Object get() throws InterruptedException, ExecutionException
+    {
+        while ( !mDone )
+            wait();
+        return getOutcome();
+    }
+    
+    public synchronized Object get( long timeout, TimeUnit unit ) throws InterruptedException,
+                                                                        ExecutionException,
+                                                                        TimeoutException
+    {
+        long deadline = System.nanoTime() + unit.toNanos( timeout );
+        while ( !mDone )
+        {
+            long remaining = deadline - System.nanoTime();
+            if ( remaining <= 0 )
+                throw new TimeoutException();
+            TimeUnit.NANOSECONDS.timedWait( this, remaining );
+        }
+        return getOutcome();
+    }
+    
+    private Object getOutcome() throws ExecutionException
+    {
+        if ( mCancelled )
+            throw new java.util.concurrent.CancellationException();
+        if ( mException != null )
+            throw new ExecutionException( mException );
+        return mResult;
+    }
+    
+    public synchronized boolean isCancelled()
+    {
+        return mCancelled;
+    }
+    
+    public synchronized boolean isDone()
+    {
+        return mDone;
+    }
+    
+    ////////////////////////// CLASSES \\\\\\\\\\\\\\\\\\\\\\\\\\\\
+    /**
+     * Passes the outcome of the asynchronous function to the future.
+     */
+    private class SourceListener implements CallListener
+    {
+        public void handleSuccess( Object result )
+        {
+            setResult( result );
+        }
+        
+        public void handleException( Exception exception )
+        {
+            setException( exception );
+        }
+        
+        public void handleCancel()
+        {
+            /* the source is already cancelled, no need to cancel it again */
+            complete( null, null, true );
+        }
+        
+        public void handleFinally()
+        {
+        }
+    }
+    
+    /**
+     * A CallListener waiting for the outcome.
+     */
+    private class Delivery implements Runnable
+    {
+        private final CallListener mListener;
+        private final Invoker mInvoker;
+        
+        Delivery( CallListener listener, Invoker invoker )
+        {
+            mListener = listener;
+            mInvoker = invoker;
+        }
+        
+        void invoke()
+        {
+            mInvoker.invoke( this );
+        }
+        
+        public void run()
+        {
+            boolean cancelled;
+            Object result;
+            Throwable exception;
+            synchronized ( TaskFuture.this )
+            {
+                cancelled = mCancelled;
+                result = mResult;
+                exception = mException;
+            }
+            
+            try
+            {
+                if ( cancelled )
+                    mListener.handleCancel();
+                else if ( exception instanceof Exception )
+                    mListener.handleException( (Exception) exception );
+                else if ( exception != null )
+                    mListener.handleException( new ExecutionException( exception ) );
+                else
+                    mListener.handleSuccess( result );
+            }
+            finally
+            {
+                mListener.handleFinally();
+            }
+        }
+    }
+}
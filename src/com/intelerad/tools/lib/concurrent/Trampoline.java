@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2008, Intelerad Medical Systems Incorporated
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Intelerad Medical Systems Incorporated nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY Intelerad Medical Systems Incorporated ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL Intelerad Medical Systems Incorporated BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.intelerad.tools.lib.concurrent;
+
+import java.util.LinkedList;
+
+/**
+ * Runs runnables on the current thread without letting the stack grow when
+ * they re-enter. A runnable passed to run() while the current thread is
+ * already inside run() is queued and runs once the outer one returns, in the
+ * order they were queued.
+ * <p>
+ * Used where an asynchronous function may complete synchronously from inside
+ * call() and the listener starts the next one: without it every step adds a
+ * few frames to the stack until it overflows.
+ */
+public final class Trampoline
+{
+    private static final ThreadLocal mState = new ThreadLocal()
+    {
+        protected Object initialValue()
+        {
+            return new State();
+        }
+    };
+    
+    private Trampoline()
+    {
+    }
+    
+    /**
+     * Runs the runnable now, or after the runnable currently running on this
+     * thread returns if there is one. Exceptions thrown by the first runnable
+     * are thrown after the queue is drained; exceptions thrown by queued ones
+     * are logged.
+     * 
+     * @param runnable
+     */
+    public static void run( Runnable runnable )
+    {
+        State state = (State) mState.get();
+        if ( state.mRunning )
+        {
+            state.mQueue.add( runnable );
+            return;
+        }
+        
+        state.mRunning = true;
+        try
+        {
+            runnable.run();
+        }
+        finally
+        {
+            drain( state );
+        }
+    }
+    
+    private static void drain( State state )
+    {
+        try
+        {
+            Runnable queued;
+            while ( ( queued = (Runnable) state.mQueue.poll() ) != null )
+            {
+                try
+                {
+                    queued.run();
+                }
+                catch ( Throwable t )
+                {
+                    ConcurrencyLogManager.getDefault().printException( "Uncaught exception in trampolined runnable", t );
+                }
+            }
+        }
+        finally
+        {
+            state.mRunning = false;
+        }
+    }
+    
+    private static final class State
+    {
+        boolean mRunning;
+        final LinkedList mQueue = new LinkedList();
+    }
+}
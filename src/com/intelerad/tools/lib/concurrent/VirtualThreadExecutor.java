@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2008, Intelerad Medical Systems Incorporated
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Intelerad Medical Systems Incorporated nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY Intelerad Medical Systems Incorporated ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL Intelerad Medical Systems Incorporated BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.intelerad.tools.lib.concurrent;
+
+import java.util.concurrent.Executor;
+
+/**
+ * An Executor that runs every runnable on its own virtual thread. Meant for
+ * Callables that spend most of their time blocked on I/O (JDBC, files..) where
+ * a small pool of platform threads limits how many can run at once.
+ * <p>
+ * Use it for a single call:
+ * 
+ * <pre>
+ *   CallableUtilities.execute( callable, listener, invoker, VirtualThreadExecutor.getInstance() );
+ * </pre>
+ * 
+ * or for every call that uses the default thread pool:
+ * 
+ * <pre>
+ *   CallableUtilities.setDefaultThreadCache( VirtualThreadExecutor.getInstance() );
+ *   CallableExecutor.setThreadPool( VirtualThreadExecutor.getInstance() );
+ * </pre>
+ * 
+ * Virtual threads need Java 21. This is the version of the class used on older
+ * JVMs; the real one lives in META-INF/versions/21 of the jar (see src-java21).
+ * Here runnables are handed to a private WorkerThreadPool instead.
+ */
+public final class VirtualThreadExecutor implements Executor
+{
+    private static final VirtualThreadExecutor mInstance = new VirtualThreadExecutor();
+    
+    private Executor mFallbackThreadPool;
+    
+    public static VirtualThreadExecutor getInstance()
+    {
+        return mInstance;
+    }
+    
+    /**
+     * @return true if runnables really are run on virtual threads.
+     */
+    public static boolean isSupported()
+    {
+        return false;
+    }
+    
+    private VirtualThreadExecutor() {}
+    
+    public void execute( Runnable runnable )
+    {
+        getFallbackThreadPool().execute( runnable );
+    }
+    
+    private synchronized Executor getFallbackThreadPool()
+    {
+        if ( mFallbackThreadPool == null )
+            mFallbackThreadPool = new WorkerThreadPool();
+        return mFallbackThreadPool;
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2008, Intelerad Medical Systems Incorporated
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Intelerad Medical Systems Incorporated nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY Intelerad Medical Systems Incorporated ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL Intelerad Medical Systems Incorporated BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.intelerad.tools.lib.concurrent;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A "thread cache" style thread pool with an upper bound. Idle threads are
+ * reused first, then new threads are started up to the maximum, and only then
+ * is work queued. Threads above the core size die after being idle for the
+ * keep-alive time. When both the threads and the queue are used up the
+ * saturation policy decides what happens to the runnable (the policies in
+ * ThreadPoolExecutor work fine: AbortPolicy, CallerRunsPolicy, DiscardPolicy
+ * and DiscardOldestPolicy).
+ * <p>
+ * Note that this is different from a plain ThreadPoolExecutor with a bounded
+ * queue which only starts threads above the core size once the queue is full.
+ * <p>
+ * All threads are daemon threads.
+ * 
+ * @see CallableExecutor#setThreadPool(java.util.concurrent.Executor)
+ */
+public class WorkerThreadPool extends ThreadPoolExecutor
+{
+    public static final int DEFAULT_CORE_THREADS = 5;
+    public static final int DEFAULT_MAXIMUM_THREADS = 64;
+    public static final long DEFAULT_KEEP_ALIVE_SECONDS = 60;
+    public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+    
+    /** For use in generating thread names */
+    private static final AtomicInteger mThreadCount = new AtomicInteger();
+    
+    /** Number of threads currently running a runnable */
+    private final AtomicInteger mActiveCount = new AtomicInteger();
+    private final WorkQueue mWorkQueue;
+    private volatile RejectedExecutionHandler mSaturationPolicy;
+    
+    /**
+     * Builds a pool using the default sizes and the AbortPolicy.
+     */
+    public WorkerThreadPool()
+    {
+        this( DEFAULT_CORE_THREADS,
+              DEFAULT_MAXIMUM_THREADS,
+              DEFAULT_KEEP_ALIVE_SECONDS,
+              TimeUnit.SECONDS,
+              DEFAULT_QUEUE_CAPACITY,
+              new AbortPolicy() );
+    }
+    
+    /**
+     * @param coreThreads
+     *            number of threads kept around even when idle
+     * @param maximumThreads
+     *            maximum number of threads this pool will ever start
+     * @param keepAlive
+     *            how long a thread above the core size is kept when idle
+     * @param unit
+     *            of keepAlive
+     * @param queueCapacity
+     *            maximum number of runnables waiting for a thread
+     * @param saturationPolicy
+     *            called when a runnable can't be run or queued
+     */
+    public WorkerThreadPool( int coreThreads,
+                             int maximumThreads,
+                             long keepAlive,
+                             TimeUnit unit,
+                             int queueCapacity,
+                             RejectedExecutionHandler saturationPolicy )
+    {
+        this( coreThreads,
+              maximumThreads,
+              keepAlive,
+              unit,
+              new WorkQueue( queueCapacity ),
+              saturationPolicy );
+    }
+    
+    private WorkerThreadPool( int coreThreads,
+                              int maximumThreads,
+                              long keepAlive,
+                              TimeUnit unit,
+                              WorkQueue workQueue,
+                              RejectedExecutionHandler saturationPolicy )
+    {
+        super( coreThreads, maximumThreads, keepAlive, unit, workQueue, new WorkerThreadFactory() );
+        if ( saturationPolicy == null )
+            throw new NullPointerException( "saturationPolicy" );
+        
+        mWorkQueue = workQueue;
+        mWorkQueue.mPool = this;
+        mSaturationPolicy = saturationPolicy;
+        super.setRejectedExecutionHandler( new SaturationHandler() );
+    }
+    
+    public void setRejectedExecutionHandler( RejectedExecutionHandler handler )
+    {
+        if ( handler == null )
+            throw new NullPointerException( "handler" );
+        mSaturationPolicy = handler;
+    }
+    
+    public RejectedExecutionHandler getRejectedExecutionHandler()
+    {
+        return mSaturationPolicy;
+    }
+    
+    protected void beforeExecute( Thread thread, Runnable runnable )
+    {
+        mActiveCount.incrementAndGet();
+        super.beforeExecute( thread, runnable );
+    }
+    
+    protected void afterExecute( Runnable runnable, Throwable throwable )
+    {
+        try
+        {
+            super.afterExecute( runnable, throwable );
+        }
+        finally
+        {
+            mActiveCount.decrementAndGet();
+        }
+    }
+    
+    /**
+     * @return true if there are fewer idle threads than queued runnables and
+     *         the pool is allowed to grow.
+     */
+    private boolean shouldStartNewThread()
+    {
+        int poolSize = getPoolSize();
+        if ( poolSize >= getMaximumPoolSize() )
+            return false;
+        int idleThreads = poolSize - mActiveCount.get();
+        return mWorkQueue.size() >= idleThreads;
+    }
+    
+    /**
+     * Refuses runnables while the pool can still grow so ThreadPoolExecutor
+     * starts a new thread instead of queueing.
+     */
+    private static class WorkQueue extends LinkedBlockingQueue
+    {
+        private static final long serialVersionUID = 1L;
+        
+        private WorkerThreadPool mPool;
+        
+        WorkQueue( int capacity )
+        {
+            super( capacity );
+        }
+        
+        public boolean offer( Object runnable )
+        {
+            if ( mPool != null && mPool.shouldStartNewThread() )
+                return false;
+            return super.offer( runnable );
+        }
+        
+        boolean forceOffer( Object runnable )
+        {
+            return super.offer( runnable );
+        }
+    }
+    
+    /**
+     * The pool may have reached its maximum size between the time the
+     * WorkQueue refused the runnable and the time a new thread was to be
+     * started. In that case the runnable is queued if there is room, otherwise
+     * the saturation policy is used.
+     */
+    private class SaturationHandler implements RejectedExecutionHandler
+    {
+        public void rejectedExecution( Runnable runnable, ThreadPoolExecutor executor )
+        {
+            if ( !isShutdown() && mWorkQueue.forceOffer( runnable ) )
+                return;
+            mSaturationPolicy.rejectedExecution( runnable, executor );
+        }
+    }
+    
+    private static class WorkerThreadFactory implements ThreadFactory
+    {
+        public Thread newThread( Runnable runnable )
+        {
+            Thread thread = new Thread( runnable, "Worker-" + mThreadCount.getAndIncrement() );
+            thread.setDaemon( true );
+            return thread;
+        }
+    }
+}